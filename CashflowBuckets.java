@@ -0,0 +1,218 @@
+package com.amazon.epi.automationdetective.xirr;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Cashflows netted into one bucket per day, kept sorted by date in primitive
+ * arrays.
+ * <p>
+ * Since the irregular rate of return only depends on the amount transferred
+ * on each day, the buckets are a sufficient summary of any number of
+ * {@link Transaction} instances: memory is bounded by the number of distinct
+ * dates rather than the number of transactions.  Buckets can be merged, so
+ * the cashflows of several positions can be combined without revisiting their
+ * transactions.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class CashflowBuckets {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] days;
+    private double[] amounts;
+    private int size;
+
+    public CashflowBuckets() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public CashflowBuckets(int capacity) {
+        days = new long[Math.max(capacity, 1)];
+        amounts = new double[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Creates buckets for the given transactions.
+     * @param txs the transactions
+     * @return buckets holding the net amount of the transactions on each day
+     */
+    public static CashflowBuckets of(Collection<Transaction> txs) {
+        final CashflowBuckets buckets = new CashflowBuckets();
+        buckets.addAll(txs);
+        return buckets;
+    }
+
+    /**
+     * Adds the amount to the bucket of the given day.
+     * @param when the day of the cashflow
+     * @param amount the amount transferred, see {@link Transaction}
+     */
+    public void add(LocalDate when, double amount) {
+        add(when.toEpochDay(), amount);
+    }
+
+    /**
+     * Adds the amount to the bucket of the given epoch day.
+     * @param day the epoch day of the cashflow
+     * @param amount the amount transferred, see {@link Transaction}
+     */
+    public void add(long day, double amount) {
+        // Feeds are mostly in date order, so check the last bucket first
+        final int at;
+        if (size == 0 || days[size - 1] < day) {
+            at = -(size + 1);
+        } else if (days[size - 1] == day) {
+            at = size - 1;
+        } else {
+            at = Arrays.binarySearch(days, 0, size, day);
+        }
+
+        if (at >= 0) {
+            amounts[at] += amount;
+        } else {
+            insert(-(at + 1), day, amount);
+        }
+    }
+
+    public void add(Transaction tx) {
+        add(tx.when, tx.amount);
+    }
+
+    public void addAll(Collection<Transaction> txs) {
+        txs.forEach(this::add);
+    }
+
+    /**
+     * Adds all the buckets of <code>other</code> to these buckets.
+     * @param other the buckets to merge in, left unchanged
+     * @return this instance
+     */
+    public CashflowBuckets merge(CashflowBuckets other) {
+        final long[] mergedDays = new long[size + other.size];
+        final double[] mergedAmounts = new double[size + other.size];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && days[i] < other.days[j])) {
+                mergedDays[k] = days[i];
+                mergedAmounts[k++] = amounts[i++];
+            } else if (i == size || other.days[j] < days[i]) {
+                mergedDays[k] = other.days[j];
+                mergedAmounts[k++] = other.amounts[j++];
+            } else {
+                mergedDays[k] = days[i];
+                mergedAmounts[k++] = amounts[i++] + other.amounts[j++];
+            }
+        }
+        days = mergedDays.length > 0 ? mergedDays : days;
+        amounts = mergedAmounts.length > 0 ? mergedAmounts : amounts;
+        size = k;
+        return this;
+    }
+
+    /**
+     * Coalesces the buckets lying within <code>toleranceDays</code> of the
+     * first bucket of their group into a single bucket, dated at the mean day
+     * of the group weighted by the absolute amounts.  The last bucket, which
+     * holds the present value on the valuation date, is never moved.
+     * <p>
+     * Moving cashflows changes the rate of return, so callers should account
+     * for the error introduced, see {@link Xirr.Builder#withDayTolerance(int, double)}.
+     * @param toleranceDays the maximum distance in days between the first and
+     *                      last bucket of a group
+     * @return new coalesced buckets, these buckets are left unchanged
+     */
+    public CashflowBuckets coalesce(int toleranceDays) {
+        final CashflowBuckets result = new CashflowBuckets(size);
+        int i = 0;
+        while (i < size) {
+            int j = i;
+            double total = 0;
+            double weight = 0;
+            double weightedOffset = 0;
+            while (j < size - 1 && days[j] - days[i] <= toleranceDays) {
+                total += amounts[j];
+                weight += Math.abs(amounts[j]);
+                weightedOffset += Math.abs(amounts[j]) * (days[j] - days[i]);
+                j++;
+            }
+            if (j == i) {
+                result.add(days[i], amounts[i]);
+                i++;
+            } else {
+                final long offset = weight > 0 ? Math.round(weightedOffset / weight) : 0;
+                result.add(days[i] + offset, total);
+                i = j;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy of these buckets, which can be modified independently.
+     * @return a copy of these buckets
+     */
+    public CashflowBuckets copy() {
+        final CashflowBuckets copy = new CashflowBuckets(size);
+        System.arraycopy(days, 0, copy.days, 0, size);
+        System.arraycopy(amounts, 0, copy.amounts, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * The number of distinct days with a cashflow.
+     * @return the number of buckets
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The epoch day of the bucket at the given index, in ascending order.
+     * @param index the index of the bucket
+     * @return the epoch day of the bucket
+     */
+    public long day(int index) {
+        return days[index];
+    }
+
+    /**
+     * The net amount of the bucket at the given index.
+     * @param index the index of the bucket
+     * @return the net amount transferred on the day of the bucket
+     */
+    public double amount(int index) {
+        return amounts[index];
+    }
+
+    /**
+     * One {@link Transaction} per bucket, in ascending date order.
+     * @return the net transactions
+     */
+    public List<Transaction> toTransactions() {
+        final List<Transaction> txs = new ArrayList<>(size + 1);
+        for (int i = 0; i < size; i++) {
+            txs.add(new Transaction(amounts[i], LocalDate.ofEpochDay(days[i])));
+        }
+        return txs;
+    }
+
+    private void insert(int at, long day, double amount) {
+        if (size == days.length) {
+            days = Arrays.copyOf(days, size * 2);
+            amounts = Arrays.copyOf(amounts, size * 2);
+        }
+        System.arraycopy(days, at, days, at + 1, size - at);
+        System.arraycopy(amounts, at, amounts, at + 1, size - at);
+        days[at] = day;
+        amounts[at] = amount;
+        size++;
+    }
+}
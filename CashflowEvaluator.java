@@ -0,0 +1,179 @@
+package com.amazon.epi.automationdetective.xirr;
+
+/**
+ * Evaluates the present value of a series of cashflows, and its derivative,
+ * under a given rate of return.  This is the inner loop of {@link Xirr}.
+ * <p>
+ * Instead of calling <code>Math.pow(1 + rate, years)</code> per cashflow, the
+ * years are kept in a primitive array and each evaluation computes
+ * <code>log1p(rate)</code> once, then <code>exp(years * log1p(rate))</code>
+ * per cashflow.  The growth factors of the last rate are kept, so evaluating
+ * the derivative at the rate whose present value was just computed (as
+ * {@link NewtonRaphson} does) requires no further exponentials.
+ * <p>
+ * Accuracy: the exponent <i>z</i> = <code>years * log1p(rate)</code> carries a
+ * relative rounding error of at most 3 half-ULPs, which <code>exp</code>
+ * turns into a relative error of the growth factor of 3|<i>z</i>| ULPs.
+ * <code>Math.pow(1 + rate, years)</code> on the other hand rounds
+ * <code>1 + rate</code> first, an error which is scaled by <code>years</code>.
+ * The growth factors are therefore within (2 + 3|<i>z</i>| + years) ULPs of
+ * the previous implementation, most of the difference being the rounding of
+ * <code>1 + rate</code> avoided here.  For holding periods of a few decades at
+ * realistic rates this amounts to a few tens of ULPs, see
+ * {@link CashflowEvaluatorHarness}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class CashflowEvaluator {
+
+    private final double[] amounts;
+    private final double[] years;
+    private final double[] growth;
+    /** Whether the growth factors hold those of <code>lastRate</code>. */
+    private boolean filled = false;
+    private double lastRate;
+
+    /**
+     * Construct an evaluator for the given cashflows.
+     * @param amounts the amounts of the cashflows, see {@link Transaction}
+     * @param years the years from each cashflow to the valuation date,
+     *              including fractional years
+     */
+    public CashflowEvaluator(double[] amounts, double[] years) {
+        if (amounts.length != years.length) {
+            throw new IllegalArgumentException(
+                "Must have as many amounts as years");
+        }
+        this.amounts = amounts;
+        this.years = years;
+        this.growth = new double[amounts.length];
+    }
+
+    /**
+     * Construct an evaluator for the given buckets, valued at the given day.
+     * @param buckets the cashflows
+     * @param valuationDay the epoch day of the valuation date
+     * @param daysInYear the number of days in a year
+     */
+    public CashflowEvaluator(CashflowBuckets buckets, long valuationDay, double daysInYear) {
+        this(new double[buckets.size()], new double[buckets.size()]);
+        for (int i = 0; i < buckets.size(); i++) {
+            amounts[i] = buckets.amount(i);
+            // Don't use YEARS.between() as it returns whole numbers
+            years[i] = (valuationDay - buckets.day(i)) / daysInYear;
+        }
+    }
+
+    /**
+     * The number of cashflows.
+     * @return the number of cashflows
+     */
+    public int size() {
+        return amounts.length;
+    }
+
+    /**
+     * The amount of the cashflow at the given index.
+     * @param index the index of the cashflow
+     * @return the amount of the cashflow
+     */
+    public double amount(int index) {
+        return amounts[index];
+    }
+
+    /**
+     * The years from the cashflow at the given index to the valuation date.
+     * @param index the index of the cashflow
+     * @return the years from the cashflow to the valuation date
+     */
+    public double years(int index) {
+        return years[index];
+    }
+
+    /**
+     * Calculates the present value of the cashflows if they had been subject
+     * to the given rate of return.
+     * @param rate the rate of return
+     * @return the present value of the cashflows
+     */
+    public double presentValue(final double rate) {
+        fillGrowth(rate);
+        double sum = 0;
+        if (rate < -1) {
+            // Extend the function into the range where the rate is less than
+            // -100%.  Even though this does not make practical sense, it
+            // allows the algorithm to converge in the cases where the
+            // candidate values enter this range.
+
+            // (1+rate) is negative, which yields imaginary values for
+            // fractional years, so use |1+rate| instead and ensure the values
+            // are always negative so there can never be a zero (as long as
+            // some amount is non-zero).  This also ensures that the
+            // derivative is positive so that Newton's method is encouraged to
+            // move the candidate values towards the proper range.
+            for (int i = 0; i < amounts.length; i++) {
+                sum -= Math.abs(amounts[i]) * growth[i];
+            }
+        } else {
+            for (int i = 0; i < amounts.length; i++) {
+                sum += amounts[i] * growth[i];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The derivative of the present value under the given rate.
+     * @param rate the rate of return
+     * @return derivative of the present value under the given rate
+     */
+    public double derivative(final double rate) {
+        fillGrowth(rate);
+        if (rate == -1) {
+            return 0;
+        }
+        // d/dr (1+r)^y = y (1+r)^y / (1+r)
+        final double base = rate < -1 ? -1 - rate : 1 + rate;
+        double sum = 0;
+        if (rate < -1) {
+            for (int i = 0; i < amounts.length; i++) {
+                sum += Math.abs(amounts[i]) * years[i] * growth[i];
+            }
+        } else {
+            for (int i = 0; i < amounts.length; i++) {
+                sum += amounts[i] * years[i] * growth[i];
+            }
+        }
+        return sum / base;
+    }
+
+    /**
+     * The growth factor of the cashflow at the given index under the rate
+     * last passed to {@link #presentValue(double)} or
+     * {@link #derivative(double)}, i.e. |1+rate|<sup>years</sup>.
+     * @param index the index of the cashflow
+     * @return the growth factor of the cashflow
+     */
+    double growth(int index) {
+        return growth[index];
+    }
+
+    private void fillGrowth(final double rate) {
+        if (filled && Double.doubleToLongBits(rate) == Double.doubleToLongBits(lastRate)) {
+            return;
+        }
+        lastRate = rate;
+        filled = true;
+        if (rate == -1) {
+            // 0^0 resolves to 1, every other power of 0 to 0
+            for (int i = 0; i < years.length; i++) {
+                growth[i] = years[i] == 0 ? 1 : 0;
+            }
+            return;
+        }
+        final double logBase = rate < -1 ? Math.log(-1 - rate) : Math.log1p(rate);
+        for (int i = 0; i < years.length; i++) {
+            growth[i] = Math.exp(years[i] * logBase);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.amazon.epi.automationdetective.xirr;
+
+import java.util.SplittableRandom;
+
+/**
+ * Correctness harness comparing {@link CashflowEvaluator} against the
+ * <code>Math.pow</code> formulas it replaced.
+ * <p>
+ * Run {@link #main(String[])}, optionally with a seed, to evaluate random
+ * cashflows over a range of rates (including rates below -100%).  The worst
+ * growth factor error is reported in ULPs and checked against the bound
+ * documented on {@link CashflowEvaluator}; the present value and derivative
+ * sums are reported as relative errors, along with the time spent by both
+ * implementations.
+ */
+public class CashflowEvaluatorHarness {
+
+    private static final int CASHFLOWS = 5_000;
+    private static final double MAX_YEARS = 40;
+    private static final double[] RATES = {
+        -3, -1.5, -1.0001, -1, -0.9999, -0.99, -0.5, -0.1, -1e-9, 0, 1e-9,
+        0.01, 0.07, 0.12, 0.5, 1, 3, 10
+    };
+
+    public static void main(String[] args) {
+        final long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        final SplittableRandom random = new SplittableRandom(seed);
+        final double[] amounts = new double[CASHFLOWS];
+        final double[] years = new double[CASHFLOWS];
+        for (int i = 0; i < CASHFLOWS; i++) {
+            amounts[i] = (random.nextBoolean() ? 1 : -1) * random.nextDouble(1, 1e6);
+            years[i] = random.nextInt((int) (MAX_YEARS * 365)) / 365.0;
+        }
+        years[0] = 0;
+
+        final CashflowEvaluator evaluator = new CashflowEvaluator(amounts, years);
+        double worstExcess = 0;
+        long referenceNanos = 0;
+        long evaluatorNanos = 0;
+        for (double rate : RATES) {
+            long start = System.nanoTime();
+            final double referencePv = referencePresentValue(amounts, years, rate);
+            final double referenceDerivative = referenceDerivative(amounts, years, rate);
+            referenceNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final double pv = evaluator.presentValue(rate);
+            final double derivative = evaluator.derivative(rate);
+            evaluatorNanos += System.nanoTime() - start;
+
+            long maxUlps = 0;
+            final double logBase = rate < -1 ? Math.log(-1 - rate) : Math.log1p(rate);
+            for (int i = 0; i < CASHFLOWS; i++) {
+                final double expected = Math.pow(Math.abs(1 + rate), years[i]);
+                final long ulps = ulps(expected, evaluator.growth(i));
+                maxUlps = Math.max(maxUlps, ulps);
+                final double bound = Double.isFinite(logBase) ? 2 + 3 * Math.abs(years[i] * logBase) + years[i] : 0;
+                worstExcess = Math.max(worstExcess, ulps - bound);
+            }
+            System.out.printf("rate=%-8s max growth error=%d ulps, pv error=%.3e, derivative error=%.3e%n",
+                rate, maxUlps, relativeError(referencePv, pv), relativeError(referenceDerivative, derivative));
+        }
+        System.out.printf("pow: %.3f ms, log-space: %.3f ms%n", referenceNanos / 1e6, evaluatorNanos / 1e6);
+        if (worstExcess > 0) {
+            throw new IllegalStateException("Growth factor error exceeds the bound by " + worstExcess + " ulps");
+        }
+    }
+
+    private static long ulps(double expected, double actual) {
+        if (expected == actual) {
+            return 0;
+        }
+        return Math.abs(Double.doubleToLongBits(expected) - Double.doubleToLongBits(actual));
+    }
+
+    private static double relativeError(double expected, double actual) {
+        if (expected == actual) {
+            return 0;
+        }
+        return Math.abs(expected - actual) / Math.max(Math.abs(expected), Double.MIN_NORMAL);
+    }
+
+    private static double referencePresentValue(double[] amounts, double[] years, double rate) {
+        double sum = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            if (-1 < rate) {
+                sum += amounts[i] * Math.pow(1 + rate, years[i]);
+            } else if (rate < -1) {
+                sum += -Math.abs(amounts[i]) * Math.pow(-1 - rate, years[i]);
+            } else if (years[i] == 0) {
+                sum += amounts[i];
+            }
+        }
+        return sum;
+    }
+
+    private static double referenceDerivative(double[] amounts, double[] years, double rate) {
+        double sum = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            if (years[i] == 0) {
+                continue;
+            } else if (-1 < rate) {
+                sum += amounts[i] * years[i] * Math.pow(1 + rate, years[i] - 1);
+            } else if (rate < -1) {
+                sum += Math.abs(amounts[i]) * years[i] * Math.pow(-1 - rate, years[i] - 1);
+            }
+        }
+        return sum;
+    }
+}
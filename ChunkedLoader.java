@@ -0,0 +1,308 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.Scrip;
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the transactions and summary files into the registry using several
+ * threads, with the same result as loading them line by line.
+ * <p>
+ * The transactions file is split into byte ranges aligned to the start of a
+ * line, which are memory mapped and parsed concurrently.  Each chunk registers
+ * its scrips in its own {@link ScripRegistry} and buffers their transactions
+ * per scrip, so the workers share nothing but the loaded FX rates.  The
+ * summary file is parsed by another worker at the same time.
+ * <p>
+ * The chunks are then merged in file order, and the scrips of each chunk in
+ * order of first appearance, so that scrip ids and the order of the
+ * transactions of each scrip are those of a sequential load.  Corporate
+ * actions are applied during the merge, as they depend on that order.
+ * <p>
+ * Transactions already in a {@link TransactionLog} are loaded from it
+ * instead, see {@link #load(TransactionLog, File)}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class ChunkedLoader {
+
+    /** Files smaller than this per thread are not worth splitting further. */
+    private static final long MIN_CHUNK_BYTES = 1 << 20;
+    /** A mapped buffer cannot exceed 2GB. */
+    private static final long MAX_CHUNK_BYTES = 1 << 30;
+    private static final byte NEW_LINE = '\n';
+
+    private final ScripRegistry registry;
+    private final FxRates fxRates;
+    private final CorporateActions corporateActions;
+    private final int threads;
+
+    public ChunkedLoader(final ScripRegistry registry, final FxRates fxRates,
+                         final CorporateActions corporateActions, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Must have at least one thread : " + threads);
+        }
+        this.registry = registry;
+        this.fxRates = fxRates;
+        this.corporateActions = corporateActions;
+        this.threads = threads;
+    }
+
+    /**
+     * Loads the transactions of both files into the scrips of the registry,
+     * along with the dividends and the current holdings.
+     * @param txFile the transactions file
+     * @param summaryFile the summary file
+     */
+    public void load(final File txFile, final File summaryFile) throws IOException, InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final Future<List<SummaryRecord>> summary = executor.submit(() -> parseSummary(summaryFile));
+            final List<Future<Chunk>> chunks = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(txFile.toPath(), StandardOpenOption.READ)) {
+                final long[] bounds = split(channel);
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    final long from = bounds[i];
+                    final long to = bounds[i + 1];
+                    chunks.add(executor.submit(() -> parseChunk(channel, from, to)));
+                }
+                for (Future<Chunk> chunk : chunks) {
+                    merge(get(chunk));
+                }
+            }
+            corporateActions.updateHoldings(registry);
+            corporateActions.addDividends(registry, fxRates);
+            applySummary(get(summary));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads the transactions of the log into the scrips of the registry, see
+     * {@link TransactionLog#load(ScripRegistry, FxRates, CorporateActions)},
+     * along with the dividends and the current holdings, parsing the summary
+     * file at the same time.
+     * @param log the transaction log, appended to beforehand
+     * @param summaryFile the summary file
+     */
+    public void load(final TransactionLog log, final File summaryFile) throws IOException, InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<List<SummaryRecord>> summary = executor.submit(() -> parseSummary(summaryFile));
+            log.load(registry, fxRates, corporateActions);
+            corporateActions.updateHoldings(registry);
+            corporateActions.addDividends(registry, fxRates);
+            applySummary(get(summary));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Offsets of the chunks, each one starting at a line, followed by the
+     * size of the file.
+     */
+    private long[] split(final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        //Skip the header
+        final long start = skipLine(channel, 0);
+        final long length = size - start;
+        final int count = (int) Math.max(Math.min(threads, length / MIN_CHUNK_BYTES),
+                (length + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+        final long[] bounds = new long[Math.max(count, 1) + 1];
+        bounds[0] = start;
+        for (int i = 1; i < bounds.length - 1; i++) {
+            bounds[i] = Math.max(bounds[i - 1], nextLine(channel, start + length * i / (bounds.length - 1)));
+        }
+        bounds[bounds.length - 1] = size;
+        return bounds;
+    }
+
+    /** Offset of the first line starting at or after the given offset. */
+    private static long nextLine(final FileChannel channel, final long offset) throws IOException {
+        return skipLine(channel, offset - 1);
+    }
+
+    /** Offset following the first new line at or after the given offset. */
+    private static long skipLine(final FileChannel channel, final long offset) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = offset;
+        while (channel.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position++;
+                if (buffer.get() == NEW_LINE) {
+                    return position;
+                }
+            }
+            buffer.clear();
+        }
+        return channel.size();
+    }
+
+    private Chunk parseChunk(final FileChannel channel, final long from, final long to) throws IOException {
+        final Chunk chunk = new Chunk();
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        final CsvLine record = new CsvLine();
+        // SimpleDateFormat is not thread-safe
+        final SimpleDateFormat dateFormat = (SimpleDateFormat) XirrCalculator.TX_DATE_FORMAT.clone();
+        byte[] bytes = new byte[256];
+        while (buffer.hasRemaining()) {
+            final int start = buffer.position();
+            int end = start;
+            while (end < buffer.limit() && buffer.get(end) != NEW_LINE) {
+                end++;
+            }
+            int length = end - start;
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            if (buffer.hasRemaining()) {
+                // Skip the new line
+                buffer.get();
+            }
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                continue;
+            }
+
+            record.reset(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            final int localId = chunk.registry.register(record, XirrCalculator.SCRIP_CODE_INDEX,
+                    XirrCalculator.SCRIP_NAME_INDEX);
+            if (localId == chunk.transactions.size()) {
+                final String currency = record.fields() > XirrCalculator.TX_CURRENCY_INDEX
+                        ? record.get(XirrCalculator.TX_CURRENCY_INDEX) : null;
+                chunk.transactions.add(new ArrayList<>());
+                chunk.series.add(fxRates.series(currency));
+            }
+            chunk.transactions.get(localId).add(
+                    XirrCalculator.parseTransaction(record, chunk.series.get(localId), dateFormat));
+        }
+        return chunk;
+    }
+
+    private void merge(final Chunk chunk) {
+        for (int localId = 0; localId < chunk.registry.size(); localId++) {
+            final Scrip local = chunk.registry.get(localId);
+            final int scripId = registry.register(local.getScripCode(), local.getScripName());
+            final Scrip scrip = registry.get(scripId);
+            final FxRates.Series localFx = chunk.series.get(localId);
+            final FxRates.Series fx = fxRates.resolve(scripId, localFx.getCurrency());
+            // The currency of a scrip is the one of its first record in the file
+            final boolean convert = !Objects.equals(localFx.getCurrency(), fx.getCurrency());
+            for (Transaction tx : chunk.transactions.get(localId)) {
+                final Transaction currTx = convert
+                        ? fx.convert(new Transaction(tx.getAmount(), tx.getWhen(), tx.getUnits(), tx.getPrice()))
+                        : tx;
+                scrip.getTransactions().add(corporateActions.apply(scripId, scrip, currTx));
+            }
+        }
+    }
+
+    private static List<SummaryRecord> parseSummary(final File summaryFile) throws IOException {
+        final List<SummaryRecord> records = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(summaryFile))) {
+            final CsvLine record = new CsvLine();
+            //Skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                record.reset(line);
+                records.add(new SummaryRecord(
+                        record.get(XirrCalculator.SCRIP_CODE_INDEX),
+                        record.get(XirrCalculator.SCRIP_NAME_INDEX),
+                        record.fields() > XirrCalculator.SUMMARY_CURRENCY_INDEX
+                                ? record.get(XirrCalculator.SUMMARY_CURRENCY_INDEX) : null,
+                        record.getInt(XirrCalculator.SUMMARY_HOLDING_QTY_INDEX),
+                        record.getDouble(XirrCalculator.SUMMARY_MARKET_VALUE_INDEX)));
+            }
+        }
+        return records;
+    }
+
+    private void applySummary(final List<SummaryRecord> records) {
+        final Date txDate = Date.from(Instant.now());
+        for (SummaryRecord record : records) {
+            final int scripId = registry.register(record.scripCode, record.scripName);
+            final Scrip scrip = registry.get(scripId);
+            final FxRates.Series fx = fxRates.resolve(scripId, record.currency);
+
+            //The holding of the summary takes precedence over the one of the transactions
+            scrip.setHoldingQty(record.qty);
+            if(record.marketValue > 0 && record.qty > 0) {
+                //Treat the current holding as sold at market value
+                final Transaction currTx = new Transaction(record.marketValue, txDate, -record.qty,
+                        record.marketValue / record.qty);
+                scrip.getTransactions().add(fx.convert(currTx));
+            }
+        }
+    }
+
+    private static <T> T get(final Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * The scrips of one chunk and their transactions, by id in the chunk.
+     */
+    private static class Chunk {
+        final ScripRegistry registry = new ScripRegistry();
+        final List<List<Transaction>> transactions = new ArrayList<>();
+        final List<FxRates.Series> series = new ArrayList<>();
+    }
+
+    /**
+     * One record of the summary file.
+     */
+    private static class SummaryRecord {
+        final String scripCode;
+        final String scripName;
+        final String currency;
+        final int qty;
+        final double marketValue;
+
+        SummaryRecord(final String scripCode, final String scripName, final String currency, final int qty,
+                      final double marketValue) {
+            this.scripCode = scripCode;
+            this.scripName = scripName;
+            this.currency = currency;
+            this.qty = qty;
+            this.marketValue = marketValue;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.Scrip;
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits, bonus issues and dividends, applied to the transactions while they
+ * are ingested so that input files need not be adjusted beforehand.
+ * <p>
+ * The events file has a header followed by one event per line:
+ * <pre>
+ *     Code,Ex-date,Type,Value,Base
+ *     INFY,01-Jul-19,Split,2,1      (2 new shares for every 1 held)
+ *     INFY,15-Sep-19,Bonus,1,1      (1 bonus share for every 1 held)
+ *     INFY,20-Oct-19,Dividend,8.0   (8.0 per share held before the ex-date)
+ * </pre>
+ * The events of each scrip are indexed by ex-date in primitive arrays, along
+ * with the cumulative share factor of all later events.  Adjusting a
+ * transaction is a binary search for the first event after its date: its
+ * units are scaled to today's share terms and its price scaled inversely, the
+ * cashflow being unchanged.  Dividend entitlements are accumulated per event
+ * in the same step, and the dividends are added as inflow transactions once
+ * all transactions have been ingested, see
+ * {@link #addDividends(ScripRegistry, FxRates)}.  The adjusted units are
+ * accumulated per scrip the same way and only rounded into the holding
+ * quantity at the end, see {@link #updateHoldings(ScripRegistry)}, so that
+ * the fractional units of a ratio such as a 3:2 split are not rounded once
+ * per transaction.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class CorporateActions {
+
+    //Events file column indices
+    private static final int EVENT_CODE_INDEX = 0;
+    private static final int EVENT_DATE_INDEX = 1;
+    private static final int EVENT_TYPE_INDEX = 2;
+    private static final int EVENT_VALUE_INDEX = 3;
+    private static final int EVENT_BASE_INDEX = 4;
+
+    private static final String EVENT_SPLIT = "Split";
+    private static final String EVENT_BONUS = "Bonus";
+    private static final String EVENT_DIVIDEND = "Dividend";
+
+    private final Map<String, EventIndex> events = new HashMap<>();
+    /** Events by scrip id, resolved from the scrip code once per scrip. */
+    private EventIndex[] byId = new EventIndex[0];
+    private boolean[] resolved = new boolean[0];
+    /** Units of the transactions applied so far, by scrip id, in today's share terms. */
+    private double[] units = new double[0];
+
+    /**
+     * Loads the events file, returning no events if the file does not exist.
+     * @param file the events file
+     * @return the corporate actions
+     */
+    public static CorporateActions load(final File file) throws IOException {
+        final CorporateActions actions = new CorporateActions();
+        if (!file.exists()) {
+            return actions;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            final CsvLine record = new CsvLine();
+            //Skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                record.reset(line);
+                final Date exDate = XirrCalculator.strToDate(record.get(EVENT_DATE_INDEX));
+                if (exDate == null) {
+                    throw new IllegalStateException("Corporate action date cannot be null : " + line);
+                }
+                final long exDay = toEpochDay(exDate);
+                final EventIndex index = actions.events.computeIfAbsent(record.get(EVENT_CODE_INDEX),
+                        code -> new EventIndex());
+                if (record.equalsIgnoreCase(EVENT_TYPE_INDEX, EVENT_SPLIT)) {
+                    index.add(exDay, record.getDouble(EVENT_VALUE_INDEX) / record.getDouble(EVENT_BASE_INDEX), 0);
+                } else if (record.equalsIgnoreCase(EVENT_TYPE_INDEX, EVENT_BONUS)) {
+                    final double base = record.getDouble(EVENT_BASE_INDEX);
+                    index.add(exDay, (base + record.getDouble(EVENT_VALUE_INDEX)) / base, 0);
+                } else if (record.equalsIgnoreCase(EVENT_TYPE_INDEX, EVENT_DIVIDEND)) {
+                    index.add(exDay, 1, record.getDouble(EVENT_VALUE_INDEX));
+                } else {
+                    throw new IllegalStateException("Unknown corporate action type : " + line);
+                }
+            }
+        }
+        actions.events.values().forEach(EventIndex::seal);
+        return actions;
+    }
+
+    /**
+     * Adjusts a transaction of the given scrip for the splits and bonus issues
+     * after its date, adds its units to those held of the scrip and records
+     * their dividend entitlements.
+     * @param id the id of the scrip in the registry
+     * @param scrip the scrip
+     * @param tx the transaction as traded
+     * @return the transaction in today's share terms
+     */
+    public Transaction apply(final int id, final Scrip scrip, final Transaction tx) {
+        final EventIndex index = index(id, scrip);
+        Transaction adjusted = tx;
+        if (index != null) {
+            adjusted = index.apply(tx);
+        }
+        units[id] += adjusted.getUnits();
+        return adjusted;
+    }
+
+    /**
+     * Sets the holding quantity of each scrip to the units of all its
+     * transactions applied, rounded once.
+     * @param registry the scrips
+     */
+    public void updateHoldings(final ScripRegistry registry) {
+        for (int id = 0; id < registry.size() && id < units.length; id++) {
+            registry.get(id).setHoldingQty((int) Math.round(units[id]));
+        }
+    }
+
+    /**
+     * Adds one inflow transaction per dividend to the scrips entitled to it,
+     * based on the units held before each ex-date.
+     * @param registry the scrips
+     * @param fxRates the rates converting the dividends of each scrip into
+     *                the reporting currency
+     */
+    public void addDividends(final ScripRegistry registry, final FxRates fxRates) {
+        for (int id = 0; id < registry.size(); id++) {
+            final Scrip scrip = registry.get(id);
+            final EventIndex index = index(id, scrip);
+            if (index != null) {
+                index.addDividends(scrip, fxRates.seriesOf(id));
+            }
+        }
+    }
+
+    private EventIndex index(final int id, final Scrip scrip) {
+        if (id >= resolved.length) {
+            final int length = Math.max(id + 1, resolved.length * 2);
+            byId = Arrays.copyOf(byId, length);
+            resolved = Arrays.copyOf(resolved, length);
+            units = Arrays.copyOf(units, length);
+        }
+        if (!resolved[id]) {
+            byId[id] = events.get(scrip.getScripCode());
+            resolved[id] = true;
+        }
+        return byId[id];
+    }
+
+    private static long toEpochDay(final Date date) {
+        // Same conversion as Transaction, so the days line up
+        return LocalDate.from(date.toInstant().atZone(ZoneId.systemDefault())).toEpochDay();
+    }
+
+    /**
+     * The events of one scrip, sorted by ex-date.
+     */
+    private static class EventIndex {
+        private long[] days = new long[4];
+        private double[] factors = new double[4];
+        private double[] dividends = new double[4];
+        private int size;
+        /** Product of the factors of the events from the index onwards. */
+        private double[] cumulative;
+        /**
+         * Units entitled from each event onwards, in today's share terms,
+         * accumulated as differences: the units held before event k are the
+         * sum of the entries up to k.
+         */
+        private double[] entitled;
+
+        void add(final long day, final double factor, final double dividend) {
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                factors = Arrays.copyOf(factors, size * 2);
+                dividends = Arrays.copyOf(dividends, size * 2);
+            }
+            days[size] = day;
+            factors[size] = factor;
+            dividends[size++] = dividend;
+        }
+
+        void seal() {
+            // Sort the events by date without boxing
+            final long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = days[i] << 20 | i;
+            }
+            Arrays.sort(order);
+            final long[] sortedDays = new long[size];
+            final double[] sortedFactors = new double[size];
+            final double[] sortedDividends = new double[size];
+            for (int i = 0; i < size; i++) {
+                final int from = (int) (order[i] & ((1 << 20) - 1));
+                sortedDays[i] = days[from];
+                sortedFactors[i] = factors[from];
+                sortedDividends[i] = dividends[from];
+            }
+            days = sortedDays;
+            factors = sortedFactors;
+            dividends = sortedDividends;
+
+            cumulative = new double[size + 1];
+            cumulative[size] = 1;
+            for (int i = size - 1; i >= 0; i--) {
+                cumulative[i] = cumulative[i + 1] * factors[i];
+            }
+            entitled = new double[size + 1];
+        }
+
+        Transaction apply(final Transaction tx) {
+            final int next = firstAfter(tx.getWhen().toEpochDay());
+            final double units = tx.getUnits() * cumulative[next];
+            entitled[next] += units;
+            if (cumulative[next] == 1) {
+                return tx;
+            }
+            return new Transaction(tx.getAmount(), tx.getWhen(), units, tx.getPrice() / cumulative[next],
+                    tx.getCurrency(), tx.getFxRate());
+        }
+
+        void addDividends(final Scrip scrip, final FxRates.Series fx) {
+            double units = 0;
+            for (int i = 0; i < size; i++) {
+                units += entitled[i];
+                // Convert back to the share terms of the ex-date
+                final double held = units / cumulative[i];
+                if (dividends[i] != 0 && held > 0) {
+                    scrip.getTransactions().add(
+                            fx.convert(Transaction.income(held * dividends[i], LocalDate.ofEpochDay(days[i]))));
+                }
+            }
+        }
+
+        /** Index of the first event strictly after the day, size if none. */
+        private int firstAfter(final long day) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (days[mid] <= day) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.portfolio.evaluator;
+
+import java.util.Arrays;
+
+/**
+ * Locates the fields of a comma separated line without splitting it, so that
+ * fields can be parsed or looked up in place instead of being copied into a
+ * new String each.
+ * <p>
+ * Instances are meant to be reused for every line of a file and are not
+ * thread-safe.
+ */
+final class CsvLine {
+
+    private static final char SEPARATOR = ',';
+
+    private String line;
+    private int[] starts = new int[16];
+    private int fields;
+
+    /**
+     * Locates the fields of the given line, replacing the previous one.
+     * @param line the line
+     * @return this instance
+     */
+    CsvLine reset(final String line) {
+        this.line = line;
+        fields = 0;
+        starts[0] = 0;
+        for (int i = line.indexOf(SEPARATOR); i >= 0; i = line.indexOf(SEPARATOR, i + 1)) {
+            add(i + 1);
+        }
+        add(line.length() + 1);
+        return this;
+    }
+
+    String line() {
+        return line;
+    }
+
+    int fields() {
+        return fields;
+    }
+
+    /**
+     * Index of the first character of the field in the line.
+     * @param field the index of the field
+     * @return index of the first character of the field
+     */
+    int start(final int field) {
+        if (field >= fields) {
+            throw new ArrayIndexOutOfBoundsException("Line has no field " + field + " : " + line);
+        }
+        return starts[field];
+    }
+
+    /**
+     * Index following the last character of the field in the line.
+     * @param field the index of the field
+     * @return index following the last character of the field
+     */
+    int end(final int field) {
+        start(field);
+        return starts[field + 1] - 1;
+    }
+
+    String get(final int field) {
+        return line.substring(start(field), end(field));
+    }
+
+    int getInt(final int field) {
+        return Integer.parseInt(line, start(field), end(field), 10);
+    }
+
+    double getDouble(final int field) {
+        return Double.parseDouble(get(field));
+    }
+
+    boolean equalsIgnoreCase(final int field, final String value) {
+        return end(field) - start(field) == value.length()
+                && line.regionMatches(true, start(field), value, 0, value.length());
+    }
+
+    private void add(final int start) {
+        if (fields + 1 == starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[++fields] = start;
+    }
+}
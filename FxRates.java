@@ -0,0 +1,272 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table of FX rates used to convert transactions into the reporting currency
+ * while they are ingested.
+ * <p>
+ * The rates file has a header followed by one rate per line, the pair being
+ * the base currency followed by the quote currency and the rate the units of
+ * quote currency per unit of base currency:
+ * <pre>
+ *     Date,Pair,Rate
+ *     02-Jan-20,USDINR,71.38
+ * </pre>
+ * The rates of each pair are kept in primitive arrays sorted by date, the
+ * rate on a given day being the last one published on or before it.  Each
+ * series caches its last lookup, as consecutive transactions of a scrip are
+ * usually on the same or nearby days.
+ * <p>
+ * The currency of a scrip is resolved once, from the first record it appears
+ * in, and its series is then looked up by scrip id.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class FxRates {
+
+    //Rates file column indices
+    private static final int FX_DATE_INDEX = 0;
+    private static final int FX_PAIR_INDEX = 1;
+    private static final int FX_RATE_INDEX = 2;
+
+    private final String reportingCurrency;
+    private final Map<String, Series> pairs = new HashMap<>();
+    /** Series by scrip id, resolved from the currency of the scrip once. */
+    private Series[] byId = new Series[0];
+
+    private FxRates(final String reportingCurrency) {
+        this.reportingCurrency = reportingCurrency;
+    }
+
+    /**
+     * Loads the rates file, returning no rates if the file does not exist.
+     * @param file the rates file
+     * @param reportingCurrency the currency to convert into
+     * @return the rates
+     */
+    public static FxRates load(final File file, final String reportingCurrency) throws IOException {
+        final FxRates rates = new FxRates(reportingCurrency);
+        if (!file.exists()) {
+            return rates;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            final CsvLine record = new CsvLine();
+            //Skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                record.reset(line);
+                final Date date = XirrCalculator.strToDate(record.get(FX_DATE_INDEX));
+                if (date == null) {
+                    throw new IllegalStateException("FX rate date cannot be null : " + line);
+                }
+                final String pair = record.get(FX_PAIR_INDEX);
+                rates.pairs.computeIfAbsent(pair, p -> new Series(p, false))
+                        .add(LocalDate.from(date.toInstant().atZone(ZoneId.systemDefault())).toEpochDay(),
+                                record.getDouble(FX_RATE_INDEX));
+            }
+        }
+        rates.pairs.values().forEach(Series::seal);
+        return rates;
+    }
+
+    public String getReportingCurrency() {
+        return reportingCurrency;
+    }
+
+    /**
+     * Series converting the given currency into the reporting currency.
+     * Unlike the rest of this class, this can be called from several threads
+     * once the rates are loaded, each call returning its own view.
+     * @param currency the currency, null or empty for the reporting currency
+     * @return the series, {@link Series#IDENTITY} for the reporting currency
+     * @throws IllegalStateException if there are no rates for the currency
+     */
+    public Series series(final String currency) {
+        if (currency == null || currency.isEmpty() || currency.equals(reportingCurrency)) {
+            return Series.IDENTITY;
+        }
+        final Series direct = pairs.get(currency + reportingCurrency);
+        if (direct != null) {
+            return direct.view(currency, false);
+        }
+        final Series inverse = pairs.get(reportingCurrency + currency);
+        if (inverse != null) {
+            return inverse.view(currency, true);
+        }
+        throw new IllegalStateException("No FX rates from " + currency + " to " + reportingCurrency);
+    }
+
+    /**
+     * Series of the given scrip, resolving its currency from the record if
+     * this is the first time the scrip is seen.  A record without the
+     * currency field is in the reporting currency.
+     * @param id the id of the scrip in the registry
+     * @param record the record the scrip appears in
+     * @param currencyField the index of the currency field
+     * @return the series of the scrip
+     */
+    Series resolve(final int id, final CsvLine record, final int currencyField) {
+        if (id < byId.length && byId[id] != null) {
+            return byId[id];
+        }
+        return resolve(id, record.fields() > currencyField ? record.get(currencyField) : null);
+    }
+
+    /**
+     * Series of the given scrip, resolving it from the given currency if this
+     * is the first time the scrip is seen.
+     * @param id the id of the scrip in the registry
+     * @param currency the currency of the scrip, null for the reporting currency
+     * @return the series of the scrip
+     */
+    Series resolve(final int id, final String currency) {
+        if (id >= byId.length) {
+            byId = Arrays.copyOf(byId, Math.max(id + 1, byId.length * 2));
+        }
+        if (byId[id] == null) {
+            byId[id] = series(currency);
+        }
+        return byId[id];
+    }
+
+    /**
+     * Series of the given scrip, {@link Series#IDENTITY} if its currency was
+     * not resolved.
+     * @param id the id of the scrip in the registry
+     * @return the series of the scrip
+     */
+    public Series seriesOf(final int id) {
+        return id < byId.length && byId[id] != null ? byId[id] : Series.IDENTITY;
+    }
+
+    /**
+     * Rates of one currency pair, sorted by date.
+     */
+    public static class Series {
+        /** Series of the reporting currency itself. */
+        public static final Series IDENTITY = new Series(null, false);
+
+        private final String currency;
+        private final boolean inverted;
+        private long[] days = new long[16];
+        private double[] rates = new double[16];
+        private int size;
+        private long cachedDay = Long.MIN_VALUE;
+        private double cachedRate;
+
+        private Series(final String currency, final boolean inverted) {
+            this.currency = currency;
+            this.inverted = inverted;
+        }
+
+        /**
+         * The currency converted by this series.
+         * @return the currency, null for the reporting currency
+         */
+        public String getCurrency() {
+            return currency;
+        }
+
+        /**
+         * The rate on the given day, being the last one published on or before
+         * it, or the first one for days before any rate.
+         * @param day the epoch day
+         * @return the units of reporting currency per unit of the currency
+         */
+        public double rate(final long day) {
+            if (this == IDENTITY) {
+                return 1;
+            }
+            if (day == cachedDay) {
+                return cachedRate;
+            }
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (days[mid] <= day) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            final double rate = rates[Math.max(low - 1, 0)];
+            cachedDay = day;
+            cachedRate = inverted ? 1 / rate : rate;
+            return cachedRate;
+        }
+
+        /**
+         * The transaction tagged with the currency of this series and its
+         * rate on the day of the transaction.
+         * @param tx the transaction in the currency of this series
+         * @return the tagged transaction, the same instance for
+         *         {@link #IDENTITY}
+         */
+        public Transaction convert(final Transaction tx) {
+            if (this == IDENTITY) {
+                return tx;
+            }
+            return tx.withFx(currency, rate(tx.getWhen().toEpochDay()));
+        }
+
+        private void add(final long day, final double rate) {
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                rates = Arrays.copyOf(rates, size * 2);
+            }
+            days[size] = day;
+            rates[size++] = rate;
+        }
+
+        private void seal() {
+            // Rates files are usually in date order already
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = days[i - 1] <= days[i];
+            }
+            if (!sorted) {
+                final long[] order = new long[size];
+                for (int i = 0; i < size; i++) {
+                    order[i] = days[i] << 24 | i;
+                }
+                Arrays.sort(order);
+                final long[] sortedDays = new long[size];
+                final double[] sortedRates = new double[size];
+                for (int i = 0; i < size; i++) {
+                    final int from = (int) (order[i] & ((1 << 24) - 1));
+                    sortedDays[i] = days[from];
+                    sortedRates[i] = rates[from];
+                }
+                days = sortedDays;
+                rates = sortedRates;
+            }
+            if (size == 0) {
+                throw new IllegalStateException("No FX rates for " + currency);
+            }
+        }
+
+        /** View of the rates of this pair with its own lookup cache. */
+        private Series view(final String currency, final boolean inverted) {
+            final Series view = new Series(currency, inverted);
+            view.days = days;
+            view.rates = rates;
+            view.size = size;
+            return view;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.amazon.epi.automationdetective.xirr;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Solves for the cashflow which gives a series of transactions a target
+ * irregular rate of return: the terminal value, a recurring contribution or
+ * the date by which the target is reached.
+ * <p>
+ * At a fixed rate the present value is linear in the amounts of the
+ * cashflows, so each unknown has a closed form on top of the present value of
+ * the known transactions and no forward {@link Xirr} runs are needed.  The
+ * present value of the known transactions is evaluated once, see
+ * {@link CashflowEvaluator}, and moved to any other date by a single growth
+ * factor.
+ * <p>
+ * Amounts follow the sign convention of {@link Transaction}: the result is
+ * the amount of the missing cashflow, negative if it is a further
+ * investment, positive if it is a withdrawal.
+ * <p>
+ * Example usage:
+ * <code>
+ *     GoalSeek seek = GoalSeek.of(transactions, 0.12);
+ *     double value = seek.terminalValue(LocalDate.parse("2025-03-31"));
+ *     double[] values = GoalSeek.batch(positions, 0.12,
+ *             s -&gt; s.terminalValue(LocalDate.parse("2025-03-31")));
+ * </code>
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class GoalSeek {
+
+    /**
+     * Creates a goal seek for the given transactions and target rate.
+     * @param txs the known transactions
+     * @param targetRate the target irregular rate of return
+     * @return the goal seek
+     * @throws IllegalArgumentException if there are no transactions
+     * @throws IllegalArgumentException if the target rate is not above -100%
+     */
+    public static GoalSeek of(Collection<Transaction> txs, double targetRate) {
+        if (txs.isEmpty()) {
+            throw new IllegalArgumentException(
+                "Must have at least one transaction");
+        }
+        if (!(targetRate > -1)) {
+            throw new IllegalArgumentException(
+                "Target rate must be greater than -100%: " + targetRate);
+        }
+        return new GoalSeek(CashflowBuckets.of(txs), targetRate);
+    }
+
+    /**
+     * Applies the goal to each position in parallel, e.g. to compute the
+     * terminal value of every scrip of a portfolio for the same target.
+     * @param positions the known transactions of each position
+     * @param targetRate the target irregular rate of return
+     * @param goal the unknown to solve for
+     * @return the result for each position, in the order of the list, NaN
+     *         for the positions without transactions
+     */
+    public static double[] batch(List<? extends Collection<Transaction>> positions, double targetRate,
+                                 ToDoubleFunction<GoalSeek> goal) {
+        final double[] results = new double[positions.size()];
+        IntStream.range(0, results.length).parallel().forEach(i -> {
+            final Collection<Transaction> txs = positions.get(i);
+            results[i] = txs.isEmpty() ? Double.NaN : goal.applyAsDouble(of(txs, targetRate));
+        });
+        return results;
+    }
+
+    private final double targetRate;
+    private final double logGrowth;
+    private final long valuationDay;
+    private final double presentValue;
+
+    private GoalSeek(CashflowBuckets buckets, double targetRate) {
+        this.targetRate = targetRate;
+        this.logGrowth = Math.log1p(targetRate);
+        this.valuationDay = buckets.day(buckets.size() - 1);
+        this.presentValue = new CashflowEvaluator(buckets, valuationDay, Xirr.DAYS_IN_YEAR)
+            .presentValue(targetRate);
+    }
+
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * The present value of the known transactions at the target rate on the
+     * given day.
+     * @param day the epoch day of the valuation date
+     * @return the present value of the known transactions
+     */
+    public double presentValue(long day) {
+        return presentValue * Math.exp((day - valuationDay) / Xirr.DAYS_IN_YEAR * logGrowth);
+    }
+
+    /**
+     * The amount which, transferred on the given date, brings the rate of
+     * return of the transactions to the target.  If the transactions do not
+     * include their present value, this is the market value required on that
+     * date; otherwise it is the shortfall on top of it.
+     * @param when the date of the terminal cashflow
+     * @return the amount of the terminal cashflow
+     */
+    public double terminalValue(LocalDate when) {
+        return -presentValue(when.toEpochDay());
+    }
+
+    /**
+     * The amount of a recurring cashflow which brings the rate of return of
+     * the transactions to the target, e.g. a monthly contribution.  The
+     * transactions should include the expected terminal value.
+     * @param first the date of the first cashflow
+     * @param every the interval between the cashflows
+     * @param count the number of cashflows
+     * @return the amount of each recurring cashflow, NaN if count is not
+     *         positive
+     */
+    public double contribution(LocalDate first, Period every, int count) {
+        // Each cashflow c adds c * growth(day) to the present value
+        double growth = 0;
+        for (int k = 0; k < count; k++) {
+            final long day = first.plus(every.multipliedBy(k)).toEpochDay();
+            growth += Math.exp((valuationDay - day) / Xirr.DAYS_IN_YEAR * logGrowth);
+        }
+        return count > 0 ? -presentValue / growth : Double.NaN;
+    }
+
+    /**
+     * The date on which a holding of the given value, growing at the given
+     * rate, has to be realized for the rate of return of the transactions to
+     * be the target.  The date is before <code>valuedOn</code> if the target
+     * has already been passed.
+     * @param value the value of the holding, positive
+     * @param valuedOn the date on which the holding has that value
+     * @param growthRate the expected rate of growth of the holding
+     * @return the nearest date, null if the target cannot be reached at that
+     *         growth rate
+     */
+    public LocalDate targetDate(double value, LocalDate valuedOn, double growthRate) {
+        if (!(value > 0) || !(presentValue < 0) || !(growthRate > -1)) {
+            return null;
+        }
+        // Solve presentValue(T) + value * (1 + g)^((T - valuedOn) / year) = 0
+        // for T, both terms being exponential in T
+        final double logValueGrowth = Math.log1p(growthRate);
+        final double years = (Math.log(value) - Math.log(-presentValue)
+            + (valuationDay - valuedOn.toEpochDay()) / Xirr.DAYS_IN_YEAR * logValueGrowth)
+            / (logGrowth - logValueGrowth);
+        final double day = valuationDay + years * Xirr.DAYS_IN_YEAR;
+        if (!Double.isFinite(day) || Math.abs(day) > LocalDate.MAX.toEpochDay()) {
+            return null;
+        }
+        return LocalDate.ofEpochDay(Math.round(day));
+    }
+}
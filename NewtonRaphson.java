@@ -14,10 +14,19 @@ import java.util.function.DoubleUnaryOperator;
  * The <code>iterations</code> parameter is used as an upper bound on the number
  * of iterations to run the method for.
  * <p>
+ * The optional <code>deadline</code>, a value of {@link System#nanoTime()},
+ * bounds the time spent instead: the method stops with
+ * {@link SolveResult.Status#DEADLINE_EXCEEDED} once it has passed.
+ * <p>
  * The <code>tolerance</code> parameter is used to determine when the method
  * has been successful.  If the value of the function at the candidate input
  * is within the <code>tolerance</code> of the desired target value, the
  * method terminates.
+ * <p>
+ * {@link #solve(double, double)} and {@link #solveRoot(double)} report
+ * failures through the returned {@link SolveResult} without throwing, which
+ * keeps batches with many degenerate inputs cheap.  {@link #findRoot(double)}
+ * and {@link #inverse(double, double)} throw instead.
  */
 public class NewtonRaphson {
     /** Default tolerance. */
@@ -35,6 +44,8 @@ public class NewtonRaphson {
     private final DoubleUnaryOperator derivative;
     private final double tolerance;
     private final long iterations;
+    private final boolean timed;
+    private final long deadline;
 
     /**
      * Construct an instance of the NewtonRaphson method for masochists who
@@ -49,10 +60,22 @@ public class NewtonRaphson {
         DoubleUnaryOperator derivative,
         double tolerance,
         long iterations) {
+        this(func, derivative, tolerance, iterations, false, 0);
+    }
+
+    private NewtonRaphson(
+        DoubleUnaryOperator func,
+        DoubleUnaryOperator derivative,
+        double tolerance,
+        long iterations,
+        boolean timed,
+        long deadline) {
         this.func = func;
         this.derivative = derivative;
         this.tolerance = tolerance;
         this.iterations = iterations;
+        this.timed = timed;
+        this.deadline = deadline;
     }
 
     /**
@@ -86,7 +109,71 @@ public class NewtonRaphson {
      *                                 given number of iterations
      */
     public double inverse(final double target, final double guess) {
-        return new Calculation().solve(guess, target);
+        return solve(target, guess).getOrThrow();
+    }
+
+    /**
+     * Equivalent to <code>solve(0, guess)</code>.
+     * @param guess the value to start at
+     * @return the result, see {@link #solve(double, double)}
+     */
+    public SolveResult solveRoot(final double guess) {
+        return solve(0, guess);
+    }
+
+    /**
+     * Find the input value to the function which yields the given
+     * <code>target</code>, starting at the <code>guess</code>, without
+     * throwing on failure.
+     * @param target the target value of the function
+     * @param guess value to start the algorithm with
+     * @return the result holding the inverse of the function at
+     *         <code>target</code> if converged, otherwise the reason for the
+     *         failure and the last state of the algorithm
+     * @see #inverse(double, double)
+     */
+    public SolveResult solve(final double target, final double guess) {
+        double candidate = guess;
+        double value = Double.NaN;
+        double derivativeValue = Double.NaN;
+        boolean derivativeCalculated = false;
+        long i = 0;
+        SolveResult.Status status = SolveResult.Status.NONCONVERGENCE;
+        if (!Double.isFinite(candidate)) {
+            status = SolveResult.Status.CANDIDATE_OVERFLOW;
+        } else {
+            for (; i < iterations; i++) {
+                if (timed && System.nanoTime() - deadline >= 0) {
+                    status = SolveResult.Status.DEADLINE_EXCEEDED;
+                    break;
+                }
+                value = func.applyAsDouble(candidate) - target;
+                if (!Double.isFinite(value)) {
+                    status = SolveResult.Status.VALUE_OVERFLOW;
+                    break;
+                } else if (Math.abs(value) < tolerance) {
+                    status = SolveResult.Status.CONVERGED;
+                    break;
+                }
+                derivativeValue = derivative.applyAsDouble(candidate);
+                derivativeCalculated = true;
+                if (!Double.isFinite(derivativeValue)) {
+                    status = SolveResult.Status.DERIVATIVE_OVERFLOW;
+                    break;
+                } else if (derivativeValue == 0.0) {
+                    status = SolveResult.Status.ZERO_DERIVATIVE;
+                    break;
+                }
+                candidate = candidate - value / derivativeValue;
+                if (!Double.isFinite(candidate)) {
+                    status = SolveResult.Status.CANDIDATE_OVERFLOW;
+                    break;
+                }
+            }
+        }
+        final long iteration = status == SolveResult.Status.NONCONVERGENCE ? iterations
+            : status == SolveResult.Status.DEADLINE_EXCEEDED ? i : i + 1;
+        return new SolveResult(status, guess, iteration, candidate, value, derivativeValue, derivativeCalculated);
     }
 
     /**
@@ -98,6 +185,8 @@ public class NewtonRaphson {
         private DoubleUnaryOperator derivative;
         private double tolerance = TOLERANCE;
         private long iterations = 10_000;
+        private boolean timed = false;
+        private long deadline = 0;
 
         public Builder() {
         }
@@ -122,8 +211,20 @@ public class NewtonRaphson {
             return this;
         }
 
+        /**
+         * Stops the method once {@link System#nanoTime()} reaches the given
+         * value, see {@link SolveResult.Status#DEADLINE_EXCEEDED}.
+         * @param deadline the deadline as a value of {@link System#nanoTime()}
+         * @return this builder
+         */
+        public Builder withDeadline(long deadline) {
+            this.timed = true;
+            this.deadline = deadline;
+            return this;
+        }
+
         public NewtonRaphson build() {
-            return new NewtonRaphson(func, derivative, tolerance, iterations);
+            return new NewtonRaphson(func, derivative, tolerance, iterations, timed, deadline);
         }
 
         /**
@@ -135,85 +236,15 @@ public class NewtonRaphson {
         public double findRoot(double guess) {
             return build().findRoot(guess);
         }
-    }
-
-    class Calculation {
-        private double guess;
-        private long i; // persistent loop counter
-        private double candidate;
-        private double value;
-        private Double derivativeValue;
-
-        public double getGuess() {
-            return guess;
-        }
-
-        public void setGuess(double guess) {
-            this.guess = guess;
-        }
-
-        public long getIteration() {
-            return i + 1;
-        }
-
-        public double getCandidate() {
-            return candidate;
-        }
-
-        public void setCandidate(double candidate) {
-            this.candidate = candidate;
-            if (!Double.isFinite(candidate)) {
-                throw new OverflowException("Candidate overflow", this);
-            }
-        }
-
-        public double getValue() {
-            return value;
-        }
 
-        public void setValue(double value) {
-            this.value = value;
-            if (!Double.isFinite(value)) {
-                throw new OverflowException("Function value overflow", this);
-            }
-        }
-
-        public Double getDerivativeValue() {
-            return derivativeValue;
-        }
-
-        public void setDerivativeValue(Double derivativeValue) {
-            this.derivativeValue = derivativeValue;
-            if (!Double.isFinite(derivativeValue)) {
-                throw new OverflowException("Derivative value overflow", this);
-            } else if (derivativeValue == 0.0) {
-                throw new ZeroValuedDerivativeException(this);
-            }
-        }
-
-        @Override
-        public String toString() {
-            return '{'
-                + "guess=" + guess
-                + ", iteration="+ i
-                + ", candidate=" + candidate
-                + ", value=" + value
-                + ", derivative=" + derivativeValue + '}';
-        }
-
-        double solve(double guess, double target) {
-            setGuess(guess);
-            setCandidate(guess);
-            for (i = 0; i < iterations; i++) {
-                setValue(func.applyAsDouble(candidate) - target);
-                if (Math.abs(value) < tolerance) {
-                    return candidate;
-                } else {
-                    setDerivativeValue(derivative.applyAsDouble(candidate));
-                    setCandidate(candidate - value / derivativeValue);
-                }
-            }
-            throw new NonconvergenceException(guess, iterations);
+        /**
+         * Convenience method which builds the NewtonRaphson instance and
+         * invokes {@link NewtonRaphson#solveRoot(double)}.
+         * @param guess see {@link NewtonRaphson#solveRoot(double)}
+         * @return see {@link NewtonRaphson#solveRoot(double)}
+         */
+        public SolveResult solveRoot(double guess) {
+            return build().solveRoot(guess);
         }
     }
 }
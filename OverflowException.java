@@ -8,9 +8,9 @@ package com.amazon.epi.automationdetective.xirr;
  */
 public class OverflowException extends ArithmeticException {
 
-    private final NewtonRaphson.Calculation state;
+    private final SolveResult state;
 
-    OverflowException(String message, NewtonRaphson.Calculation state) {
+    OverflowException(String message, SolveResult state) {
         super(message);
         this.state = state;
     }
@@ -54,7 +54,15 @@ public class OverflowException extends ArithmeticException {
      * @return the derivative value when the overflow condition occurred
      */
     public Double getDerivativeValue() {
-        return state.getDerivativeValue();
+        return state.isDerivativeCalculated() ? state.getDerivativeValue() : null;
+    }
+
+    /**
+     * Get the result of the algorithm which led to this exception.
+     * @return the result holding the state when the overflow occurred
+     */
+    public SolveResult getResult() {
+        return state;
     }
 
     @Override
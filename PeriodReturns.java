@@ -0,0 +1,171 @@
+package com.amazon.epi.automationdetective.xirr;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Calculates the closed-form period returns of a series of transactions: the
+ * time-weighted return (TWR) and the Modified Dietz return.  Neither requires
+ * an iterative solve, so both are computed in a single pass over the
+ * transactions sorted by date.
+ * <p>
+ * The Modified Dietz return is the net gain divided by the capital employed,
+ * where each flow is weighted by the fraction of the period it was invested
+ * for.  As with {@link Xirr}, include one transaction representing the present
+ * value of the account at the end of the period.
+ * <p>
+ * The time-weighted return chain-links the returns of the sub-periods between
+ * consecutive transaction dates.  The value of a position before each flow is
+ * derived from the units and unit price of its transactions, see
+ * {@link Transaction#Transaction(double, java.time.LocalDate, double, double)};
+ * a position which does not trade on a given date is valued at its last
+ * traded price.  Income such as dividends, see
+ * {@link Transaction#income(double, java.time.LocalDate)}, is part of the
+ * return of the sub-period it is paid in.  If any other transaction has no
+ * unit price, the time-weighted return is NaN.
+ * <p>
+ * Example usage:
+ * <code>
+ *     PeriodReturns returns = PeriodReturns.of(
+ *             new Transaction(-1000, LocalDate.parse("2016-01-15"), 10, 100),
+ *             new Transaction(-1050, LocalDate.parse("2016-04-17"), 10, 105),
+ *             new Transaction( 2200, LocalDate.parse("2016-08-24"), -20, 110));
+ *     double twr = returns.timeWeighted();
+ *     double dietz = returns.modifiedDietz();
+ * </code>
+ */
+public class PeriodReturns {
+
+    /**
+     * Calculates the period returns of a single position.
+     * @param txs the transactions of the position
+     * @return the period returns of the position
+     */
+    public static PeriodReturns of(Transaction... txs) {
+        return of(Arrays.asList(txs));
+    }
+
+    /**
+     * Calculates the period returns of a single position.
+     * @param txs the transactions of the position
+     * @return the period returns of the position
+     */
+    public static PeriodReturns of(Collection<Transaction> txs) {
+        return ofPositions(Collections.singletonList(txs));
+    }
+
+    /**
+     * Calculates the period returns of a portfolio made up of the given
+     * positions.  The units of each collection are tracked separately so that
+     * the portfolio can be valued at every transaction date.
+     * @param positions the transactions of each position in the portfolio
+     * @return the period returns of the portfolio
+     */
+    public static PeriodReturns ofPositions(Collection<? extends Collection<Transaction>> positions) {
+        int count = 0;
+        for (Collection<Transaction> txs : positions) {
+            count += txs.size();
+        }
+
+        final int[] position = new int[count];
+        final long[] day = new long[count];
+        final double[] amount = new double[count];
+        final double[] units = new double[count];
+        final double[] price = new double[count];
+        long minDay = Long.MAX_VALUE;
+        int p = 0;
+        int i = 0;
+        for (Collection<Transaction> txs : positions) {
+            for (Transaction tx : txs) {
+                position[i] = p;
+                day[i] = tx.when.toEpochDay();
+                amount[i] = tx.amount;
+                units[i] = tx.units;
+                price[i] = tx.price;
+                minDay = Math.min(minDay, day[i]);
+                i++;
+            }
+            p++;
+        }
+        if (count == 0) {
+            return new PeriodReturns(Double.NaN, Double.NaN);
+        }
+
+        // Sort by date without boxing: day offset in the high bits, index in
+        // the low bits
+        final long[] order = new long[count];
+        for (i = 0; i < count; i++) {
+            order[i] = (day[i] - minDay) << 32 | i;
+        }
+        Arrays.sort(order);
+
+        final double span = (order[count - 1] >>> 32) - (order[0] >>> 32);
+        final double[] held = new double[p];
+        final double[] lastPrice = new double[p];
+        double net = 0;
+        double employed = 0;
+        double value = 0;
+        double growth = 1;
+        boolean priced = true;
+
+        int k = 0;
+        while (k < count) {
+            final long offset = order[k] >>> 32;
+            int next = k;
+            // Revalue the positions traded today before applying the flows
+            final double valueBefore = value;
+            double income = 0;
+            for (; next < count && order[next] >>> 32 == offset; next++) {
+                final int tx = (int) order[next];
+                if (units[tx] == 0 && price[tx] == 0) {
+                    income += amount[tx];
+                } else if (Double.isFinite(price[tx])) {
+                    value += held[position[tx]] * (price[tx] - lastPrice[position[tx]]);
+                    lastPrice[position[tx]] = price[tx];
+                } else {
+                    priced = false;
+                }
+            }
+            if (valueBefore > 0) {
+                growth *= (value + income) / valueBefore;
+            }
+            final double weight = span > 0 ? ((order[count - 1] >>> 32) - offset) / span : 0;
+            for (; k < next; k++) {
+                final int tx = (int) order[k];
+                held[position[tx]] += units[tx];
+                value += units[tx] * lastPrice[position[tx]];
+                net += amount[tx];
+                employed -= amount[tx] * weight;
+            }
+        }
+
+        final double modifiedDietz = employed > 0 ? net / employed : Double.NaN;
+        final double timeWeighted = priced ? growth - 1 : Double.NaN;
+        return new PeriodReturns(timeWeighted, modifiedDietz);
+    }
+
+    private final double timeWeighted;
+    private final double modifiedDietz;
+
+    private PeriodReturns(double timeWeighted, double modifiedDietz) {
+        this.timeWeighted = timeWeighted;
+        this.modifiedDietz = modifiedDietz;
+    }
+
+    /**
+     * The time-weighted return over the whole period, not annualized.
+     * @return the time-weighted return, NaN if a unit price is missing
+     */
+    public double timeWeighted() {
+        return timeWeighted;
+    }
+
+    /**
+     * The Modified Dietz return over the whole period, not annualized.
+     * @return the Modified Dietz return, NaN if no capital was employed
+     */
+    public double modifiedDietz() {
+        return modifiedDietz;
+    }
+}
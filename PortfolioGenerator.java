@@ -0,0 +1,401 @@
+package com.portfolio.evaluator;
+
+import lombok.SneakyThrows;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic transactions and summary files in the layout read by
+ * {@link XirrCalculator}, at any scale, for load and soak testing.
+ * <p>
+ * The output is deterministic: the same seed, settings and end date always
+ * produce the same files.  Each scrip draws from its own random stream, split
+ * from the seed in scrip order, and follows a geometric random walk of
+ * prices with its own drift and volatility.  A configurable share of the
+ * scrips is pathological instead, cycling through:
+ * <ul>
+ *     <li>{@link Kind#ALL_SELL}: only sells, so there is no purchase</li>
+ *     <li>{@link Kind#SAME_DAY}: all trades on a single day and nothing held</li>
+ *     <li>{@link Kind#MULTI_ROOT}: repeated -100, +230, -132 yearly cashflows,
+ *         which have a rate of return of both 10% and 20%</li>
+ *     <li>{@link Kind#NEAR_TOTAL_LOSS}: a regular history whose price then
+ *         collapses to a paisa, for a rate of return close to -100%</li>
+ * </ul>
+ * Rows are written through buffered writers as they are generated, one scrip
+ * at a time, so memory does not grow with the size of the files.
+ * <p>
+ * Run {@link #main(String[])} with the output directory, optionally followed
+ * by the seed, scrips, transactions per scrip, years of history, the
+ * pathological share and the end date, e.g.
+ * <code>out 42 10000 500 20 0.05 2025-03-31</code>.  The output directory is
+ * required and cannot be the input directory of {@link XirrCalculator}, whose
+ * other input files refer to the scrips of its transactions file.  The end
+ * date is fixed by default, so that the same arguments always generate the
+ * same files.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class PortfolioGenerator {
+
+    private static final String TX_FILE = "dummy_tx.csv";
+    private static final String SUMMARY_FILE = "dummy_summary.csv";
+    private static final String TX_HEADER = "Code,Name,Exchange,Type,Qty,Price,Amount,Brokerage,Taxes,"
+            + "Net amount,Order id,Trade id,Date";
+    private static final String SUMMARY_HEADER = "Code,Name,Exchange,Qty,Avg price,Invested,LTP,P/L,Market value";
+    //Filler column in both files
+    private static final int EXCHANGE_INDEX = 2;
+    private static final String EXCHANGE = "NSE";
+    private static final int WRITE_BUFFER_CHARS = 1 << 16;
+    //Two digit years are parsed within 80 years before today
+    private static final int MAX_YEARS = 79;
+    //A multi-root cycle spans two years
+    private static final int MIN_PATHOLOGICAL_YEARS = 2;
+    //Two digit years are parsed within 20 years after today
+    private static final int MAX_YEARS_AHEAD = 20;
+    private static final LocalDate DEFAULT_END_DATE = LocalDate.of(2025, 3, 31);
+    //Read by XirrCalculator, never generated into
+    private static final Path CALCULATOR_INPUT_DIRECTORY = Paths.get("src/main/resources/pf");
+
+    /**
+     * The kinds of scrip histories generated.
+     */
+    public enum Kind {
+        REGULAR, ALL_SELL, SAME_DAY, MULTI_ROOT, NEAR_TOTAL_LOSS
+    }
+
+    private long seed = 42;
+    private int scrips = 1000;
+    private int transactionsPerScrip = 100;
+    private int years = 10;
+    private double pathologicalShare = 0;
+    private LocalDate endDate = DEFAULT_END_DATE;
+
+    /** Formatted dates of the history, by day offset from its start. */
+    private String[] dates;
+    private final StringBuilder row = new StringBuilder(128);
+    private final long[] counts = new long[Kind.values().length];
+
+    public PortfolioGenerator withSeed(final long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public PortfolioGenerator withScrips(final int scrips) {
+        if (scrips < 0) {
+            throw new IllegalArgumentException("Number of scrips cannot be negative : " + scrips);
+        }
+        this.scrips = scrips;
+        return this;
+    }
+
+    public PortfolioGenerator withTransactionsPerScrip(final int transactionsPerScrip) {
+        if (transactionsPerScrip < 1) {
+            throw new IllegalArgumentException("Must have at least one transaction per scrip : "
+                    + transactionsPerScrip);
+        }
+        this.transactionsPerScrip = transactionsPerScrip;
+        return this;
+    }
+
+    public PortfolioGenerator withYears(final int years) {
+        if (years < 1 || years > MAX_YEARS) {
+            throw new IllegalArgumentException("Years of history must be between 1 and " + MAX_YEARS + " : "
+                    + years);
+        }
+        this.years = years;
+        return this;
+    }
+
+    /**
+     * Sets the share of the scrips whose history is pathological, which
+     * requires at least two years of history for the {@link Kind#MULTI_ROOT}
+     * cycles.
+     * @param pathologicalShare the share, between 0 and 1
+     * @return this generator
+     */
+    public PortfolioGenerator withPathologicalShare(final double pathologicalShare) {
+        if (!(pathologicalShare >= 0 && pathologicalShare <= 1)) {
+            throw new IllegalArgumentException("Pathological share must be between 0 and 1 : "
+                    + pathologicalShare);
+        }
+        this.pathologicalShare = pathologicalShare;
+        return this;
+    }
+
+    /**
+     * Sets the last day of the history, 31 March 2025 by default.
+     * @param endDate the last day of the history
+     * @return this generator
+     */
+    public PortfolioGenerator withEndDate(final LocalDate endDate) {
+        this.endDate = endDate;
+        return this;
+    }
+
+    /**
+     * Writes the transactions and summary files into the given directory.
+     * @param directory the output directory, created if missing
+     * @throws IllegalStateException if there are pathological scrips but too
+     *                               few years of history for their cycles
+     * @throws IllegalStateException if the history does not fit in the two
+     *                               digit years of the transactions file
+     */
+    public void generate(final Path directory) throws IOException {
+        if (pathologicalShare > 0 && years < MIN_PATHOLOGICAL_YEARS) {
+            throw new IllegalStateException("Pathological scrips need at least " + MIN_PATHOLOGICAL_YEARS
+                    + " years of history : " + years);
+        }
+        final LocalDate startDate = endDate.minusYears(years);
+        final LocalDate today = LocalDate.now();
+        if (!startDate.isAfter(today.minusYears(MAX_YEARS + 1))
+                || !endDate.isBefore(today.plusYears(MAX_YEARS_AHEAD))) {
+            throw new IllegalStateException("History must lie within " + (MAX_YEARS + 1) + " years before and "
+                    + MAX_YEARS_AHEAD + " years after today : " + startDate + " to " + endDate);
+        }
+        Files.createDirectories(directory);
+        final long startDay = startDate.toEpochDay();
+        dates = new String[(int) (endDate.toEpochDay() - startDay) + 1];
+        for (int i = 0; i < dates.length; i++) {
+            final Date date = Date.from(LocalDate.ofEpochDay(startDay + i).atStartOfDay(ZoneId.systemDefault())
+                    .toInstant());
+            dates[i] = XirrCalculator.TX_DATE_FORMAT.format(date);
+        }
+        Arrays.fill(counts, 0);
+
+        final SplittableRandom random = new SplittableRandom(seed);
+        // Spread the pathological scrips evenly instead of drawing them
+        final double pathologicalEvery = pathologicalShare > 0 ? 1 / pathologicalShare : Double.POSITIVE_INFINITY;
+        double nextPathological = pathologicalEvery / 2;
+        int pathological = 0;
+        try (Writer txWriter = newWriter(directory.resolve(TX_FILE));
+             Writer summaryWriter = newWriter(directory.resolve(SUMMARY_FILE))) {
+            txWriter.write(TX_HEADER);
+            txWriter.write('\n');
+            summaryWriter.write(SUMMARY_HEADER);
+            summaryWriter.write('\n');
+            for (int i = 0; i < scrips; i++) {
+                Kind kind = Kind.REGULAR;
+                if (i + 1 > nextPathological) {
+                    kind = Kind.values()[1 + pathological++ % (Kind.values().length - 1)];
+                    nextPathological += pathologicalEvery;
+                }
+                counts[kind.ordinal()]++;
+                writeScrip(i, kind, random.split(), txWriter, summaryWriter);
+            }
+        }
+    }
+
+    /**
+     * The number of scrips of the given kind written by the last call to
+     * {@link #generate(Path)}.
+     * @param kind the kind of scrip
+     * @return the number of scrips
+     */
+    public long count(final Kind kind) {
+        return counts[kind.ordinal()];
+    }
+
+    private void writeScrip(final int index, final Kind kind, final SplittableRandom random,
+                            final Writer txWriter, final Writer summaryWriter) throws IOException {
+        final String code = String.format("SYN%06d", index);
+        final String name = "Synthetic " + kind.name().toLowerCase().replace('_', ' ') + " " + index;
+        final int lastOffset = dates.length - 1;
+        // Prices are kept in paise so that they print exactly
+        long held = 0;
+        long lastPaise;
+        switch (kind) {
+            case ALL_SELL: {
+                lastPaise = 100 + random.nextInt(100_000);
+                final int day = random.nextInt(lastOffset + 1);
+                for (int t = 0; t < transactionsPerScrip; t++) {
+                    writeTx(txWriter, code, name, XirrCalculator.TX_SELL, 1 + random.nextInt(100), lastPaise,
+                            Math.min(day + t, lastOffset));
+                }
+                break;
+            }
+            case SAME_DAY: {
+                lastPaise = 100 + random.nextInt(100_000);
+                final int day = random.nextInt(lastOffset + 1);
+                // A buy and a sell per pair, so as many rows as the other kinds
+                for (int t = 0; t < Math.max(transactionsPerScrip / 2, 1); t++) {
+                    final int qty = 1 + random.nextInt(100);
+                    writeTx(txWriter, code, name, XirrCalculator.TX_BUY, qty, lastPaise, day);
+                    writeTx(txWriter, code, name, XirrCalculator.TX_SELL, qty, lastPaise, day);
+                }
+                break;
+            }
+            case MULTI_ROOT: {
+                // -100, +230, -132 a year apart, repeated while it fits
+                final int qty = 100 * (1 + random.nextInt(100));
+                lastPaise = 132;
+                for (int day = random.nextInt(Math.max(lastOffset - 730, 0) + 1); day + 730 <= lastOffset;
+                     day += 1095) {
+                    writeTx(txWriter, code, name, XirrCalculator.TX_BUY, qty, 100, day);
+                    writeTx(txWriter, code, name, XirrCalculator.TX_SELL, qty, 230, day + 365);
+                    writeTx(txWriter, code, name, XirrCalculator.TX_BUY, qty, 132, day + 730);
+                }
+                // Delisted, nothing left to value
+                break;
+            }
+            default: {
+                final long[] days = tradeDays(random, lastOffset);
+                final double drift = random.nextDouble(-0.1, 0.25) / 365;
+                final double volatility = random.nextDouble(0.1, 0.5) / Math.sqrt(365);
+                double logPrice = Math.log(random.nextDouble(10, 5000));
+                int previous = 0;
+                for (long day : days) {
+                    final int offset = (int) day;
+                    logPrice += drift * (offset - previous)
+                            + volatility * Math.sqrt(offset - previous) * gaussian(random);
+                    previous = offset;
+                    final long paise = Math.max(1, Math.round(Math.exp(logPrice) * 100));
+                    // Mostly buys, selling part of the holding now and then
+                    if (held > 0 && random.nextInt(4) == 0) {
+                        final long qty = 1 + random.nextLong(held);
+                        writeTx(txWriter, code, name, XirrCalculator.TX_SELL, qty, paise, offset);
+                        held -= qty;
+                    } else {
+                        final long qty = 1 + random.nextInt(200);
+                        writeTx(txWriter, code, name, XirrCalculator.TX_BUY, qty, paise, offset);
+                        held += qty;
+                    }
+                }
+                logPrice += drift * (lastOffset - previous);
+                lastPaise = kind == Kind.NEAR_TOTAL_LOSS ? 1 : Math.max(1, Math.round(Math.exp(logPrice) * 100));
+                break;
+            }
+        }
+        writeSummary(summaryWriter, code, name, held, lastPaise);
+    }
+
+    /** Random trade days within the history, sorted, possibly repeated. */
+    private long[] tradeDays(final SplittableRandom random, final int lastOffset) {
+        final long[] days = new long[transactionsPerScrip];
+        // Leave the last day for the valuation
+        final int first = random.nextInt(Math.max(lastOffset / 2, 1));
+        for (int t = 0; t < days.length; t++) {
+            days[t] = first + random.nextInt(Math.max(lastOffset - first, 1));
+        }
+        Arrays.sort(days);
+        return days;
+    }
+
+    private void writeTx(final Writer writer, final String code, final String name, final String type,
+                         final long qty, final long paise, final int offset) throws IOException {
+        row.setLength(0);
+        for (int field = 0; field <= XirrCalculator.TX_DATE_INDEX; field++) {
+            if (field > 0) {
+                row.append(',');
+            }
+            if (field == XirrCalculator.SCRIP_CODE_INDEX) {
+                row.append(code);
+            } else if (field == XirrCalculator.SCRIP_NAME_INDEX) {
+                row.append(name);
+            } else if (field == XirrCalculator.TX_TYPE_INDEX) {
+                row.append(type);
+            } else if (field == XirrCalculator.TX_QTY) {
+                row.append(qty);
+            } else if (field == XirrCalculator.TX_PRICE) {
+                appendPaise(paise);
+            } else if (field == XirrCalculator.TX_DATE_INDEX) {
+                row.append(dates[offset]);
+            } else if (field == EXCHANGE_INDEX) {
+                row.append(EXCHANGE);
+            }
+        }
+        row.append('\n');
+        writer.append(row);
+    }
+
+    private void writeSummary(final Writer writer, final String code, final String name, final long held,
+                              final long paise) throws IOException {
+        row.setLength(0);
+        for (int field = 0; field <= XirrCalculator.SUMMARY_MARKET_VALUE_INDEX; field++) {
+            if (field > 0) {
+                row.append(',');
+            }
+            if (field == XirrCalculator.SCRIP_CODE_INDEX) {
+                row.append(code);
+            } else if (field == XirrCalculator.SCRIP_NAME_INDEX) {
+                row.append(name);
+            } else if (field == XirrCalculator.SUMMARY_HOLDING_QTY_INDEX) {
+                row.append(held);
+            } else if (field == XirrCalculator.SUMMARY_MARKET_VALUE_INDEX) {
+                appendPaise(held * paise);
+            } else if (field == EXCHANGE_INDEX) {
+                row.append(EXCHANGE);
+            }
+        }
+        row.append('\n');
+        writer.append(row);
+    }
+
+    private void appendPaise(final long paise) {
+        row.append(paise / 100).append('.');
+        final long fraction = paise % 100;
+        if (fraction < 10) {
+            row.append('0');
+        }
+        row.append(fraction);
+    }
+
+    private static double gaussian(final SplittableRandom random) {
+        // Box-Muller, SplittableRandom has no nextGaussian()
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    private static Writer newWriter(final Path path) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8),
+                WRITE_BUFFER_CHARS);
+    }
+
+    @SneakyThrows
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage : PortfolioGenerator <output directory> [seed] [scrips]"
+                    + " [transactions per scrip] [years] [pathological share] [end date]");
+        }
+        final PortfolioGenerator generator = new PortfolioGenerator();
+        final Path directory = Paths.get(args[0]);
+        if (directory.toAbsolutePath().normalize().equals(CALCULATOR_INPUT_DIRECTORY.toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException("Cannot overwrite the input files of XirrCalculator : " + directory);
+        }
+        if (args.length > 1) {
+            generator.withSeed(Long.parseLong(args[1]));
+        }
+        if (args.length > 2) {
+            generator.withScrips(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.withTransactionsPerScrip(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            generator.withYears(Integer.parseInt(args[4]));
+        }
+        if (args.length > 5) {
+            generator.withPathologicalShare(Double.parseDouble(args[5]));
+        }
+        if (args.length > 6) {
+            generator.withEndDate(LocalDate.parse(args[6]));
+        }
+
+        final long start = System.nanoTime();
+        generator.generate(directory);
+        System.out.println("Generated " + generator.scrips + " scrips into " + directory + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        for (Kind kind : Kind.values()) {
+            System.out.println(kind + " : " + generator.count(kind));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.amazon.epi.automationdetective.xirr;
+
+import java.util.Collection;
+
+/**
+ * Attributes the irregular rate of return of a portfolio to its positions.
+ * <p>
+ * At the portfolio rate <i>r</i> the present value of the portfolio is zero,
+ * and it is the sum of the present values <i>P<sub>s</sub></i> of its
+ * positions.  Linearizing each position around <i>r</i>, the rate at which
+ * its present value would be zero is approximately
+ * <i>r<sub>s</sub></i> = <i>r</i> - <i>P<sub>s</sub></i> / <i>D<sub>s</sub></i>,
+ * <i>D<sub>s</sub></i> being the derivative of its present value.  The
+ * portfolio rate is then the average of these rates weighted by
+ * <i>w<sub>s</sub></i> = <i>D<sub>s</sub></i> / <i>D</i>, the share of each
+ * position in the derivative of the portfolio, and the contribution of each
+ * position is
+ * <pre>
+ *     c<sub>s</sub> = w<sub>s</sub> r<sub>s</sub> = (D<sub>s</sub> r - P<sub>s</sub>) / D
+ * </pre>
+ * The contributions add up to <i>r</i> - <i>P</i> / <i>D</i>, which is the
+ * portfolio rate itself up to the tolerance it was solved to.
+ * <p>
+ * The present values and derivatives are evaluated at the given rate in a
+ * single pass over the cashflows of each position, the derivative of the
+ * portfolio being their sum; no position needs a solve of its own.
+ * <p>
+ * Example usage:
+ * <code>
+ *     double rate = new Xirr(allTransactions).xirr();
+ *     ReturnAttribution attribution = ReturnAttribution.of(positions, rate);
+ *     double contribution = attribution.contribution(0);
+ * </code>
+ */
+public class ReturnAttribution {
+
+    /**
+     * Attributes the given rate of return of a portfolio to its positions.
+     * @param positions the transactions of each position in the portfolio,
+     *                  including their present values, see {@link Xirr}
+     * @param rate the irregular rate of return of the portfolio
+     * @return the attribution, positions being indexed in iteration order
+     */
+    public static ReturnAttribution of(Collection<? extends Collection<Transaction>> positions, double rate) {
+        // Value all positions at the same date as the portfolio solve
+        long valuationDay = Long.MIN_VALUE;
+        for (Collection<Transaction> txs : positions) {
+            for (Transaction tx : txs) {
+                valuationDay = Math.max(valuationDay, tx.when.toEpochDay());
+            }
+        }
+
+        final double[] presentValues = new double[positions.size()];
+        final double[] derivatives = new double[positions.size()];
+        double derivative = 0;
+        double presentValue = 0;
+        int p = 0;
+        for (Collection<Transaction> txs : positions) {
+            final CashflowEvaluator evaluator =
+                new CashflowEvaluator(CashflowBuckets.of(txs), valuationDay, Xirr.DAYS_IN_YEAR);
+            presentValues[p] = evaluator.presentValue(rate);
+            // Reuses the growth factors of the present value
+            derivatives[p] = evaluator.derivative(rate);
+            presentValue += presentValues[p];
+            derivative += derivatives[p];
+            p++;
+        }
+        return new ReturnAttribution(rate, presentValue, derivative, presentValues, derivatives);
+    }
+
+    private final double rate;
+    private final double presentValue;
+    private final double derivative;
+    private final double[] presentValues;
+    private final double[] derivatives;
+
+    private ReturnAttribution(double rate, double presentValue, double derivative,
+                              double[] presentValues, double[] derivatives) {
+        this.rate = rate;
+        this.presentValue = presentValue;
+        this.derivative = derivative;
+        this.presentValues = presentValues;
+        this.derivatives = derivatives;
+    }
+
+    /**
+     * The number of positions.
+     * @return the number of positions
+     */
+    public int size() {
+        return presentValues.length;
+    }
+
+    /**
+     * The rate of return of the portfolio being attributed.
+     * @return the rate of return of the portfolio
+     */
+    public double rate() {
+        return rate;
+    }
+
+    /**
+     * The present value of the portfolio at its rate, zero up to the
+     * tolerance of the solve.
+     * @return the present value of the portfolio
+     */
+    public double presentValue() {
+        return presentValue;
+    }
+
+    /**
+     * The derivative of the present value of the portfolio at its rate.
+     * @return the derivative of the present value of the portfolio
+     */
+    public double derivative() {
+        return derivative;
+    }
+
+    /**
+     * The present value of the position at the portfolio rate: positive if
+     * it earned more than the portfolio rate, negative if it earned less.
+     * @param index the index of the position
+     * @return the present value of the position
+     */
+    public double presentValue(int index) {
+        return presentValues[index];
+    }
+
+    /**
+     * The derivative of the present value of the position at the portfolio
+     * rate, i.e. its sensitivity to the rate.
+     * @param index the index of the position
+     * @return the derivative of the present value of the position
+     */
+    public double derivative(int index) {
+        return derivatives[index];
+    }
+
+    /**
+     * The share of the position in the derivative of the portfolio, the
+     * weight of its rate in the portfolio rate.  The weights add up to 1.
+     * @param index the index of the position
+     * @return the weight of the position
+     */
+    public double weight(int index) {
+        return derivatives[index] / derivative;
+    }
+
+    /**
+     * The contribution of the position to the portfolio rate.  The
+     * contributions add up to the portfolio rate.
+     * @param index the index of the position
+     * @return the contribution of the position
+     */
+    public double contribution(int index) {
+        return (derivatives[index] * rate - presentValues[index]) / derivative;
+    }
+
+    /**
+     * The rate of return of the position estimated by a single
+     * Newton-Raphson step from the portfolio rate.  It is close to the rate
+     * of the position when the rate of the position is close to the
+     * portfolio rate.
+     * @param index the index of the position
+     * @return the estimated rate of the position, NaN if its present value
+     *         does not depend on the rate
+     */
+    public double impliedRate(int index) {
+        return derivatives[index] != 0 ? rate - presentValues[index] / derivatives[index] : Double.NaN;
+    }
+}
@@ -0,0 +1,269 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.CashflowBuckets;
+import com.amazon.epi.automationdetective.xirr.NewtonRaphson;
+import com.amazon.epi.automationdetective.xirr.SolveResult;
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import com.amazon.epi.automationdetective.xirr.Xirr;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Roll-up of scrip cashflows into a tree of groups, such as sectors, asset
+ * classes or strategies, with the XIRR of every group.
+ * <p>
+ * The tags file has a header followed by one tag per line, the path of the
+ * group being separated by <code>/</code>.  Each grouping is a separate tree:
+ * <pre>
+ *     Code,Grouping,Path
+ *     INFY,Sector,Technology/IT services
+ *     INFY,Asset class,Equity/Large cap
+ * </pre>
+ * Every node keeps its cashflows netted by date, see {@link CashflowBuckets},
+ * merged from the nodes below it.  Updating the cashflows of one scrip only
+ * marks the nodes on its path to the root as stale, so that only those are
+ * merged and solved again; the previous rate of a node is used as the guess
+ * when solving it again.  Scrips without a tag in a grouping are rolled up
+ * under {@link #UNTAGGED}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class RollupTree {
+
+    /** Group of the scrips without a tag in the grouping. */
+    public static final String UNTAGGED = "Untagged";
+
+    //Tags file column indices
+    private static final int TAG_CODE_INDEX = 0;
+    private static final int TAG_GROUPING_INDEX = 1;
+    private static final int TAG_PATH_INDEX = 2;
+    private static final String PATH_SEPARATOR = "/";
+
+    /**
+     * Loads the tags file into one tree per grouping, returning no trees if
+     * the file does not exist.
+     * @param file the tags file
+     * @return the trees by grouping, in order of first appearance
+     */
+    public static Map<String, RollupTree> load(final File file) throws IOException {
+        final Map<String, RollupTree> trees = new LinkedHashMap<>();
+        if (!file.exists()) {
+            return trees;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            final CsvLine record = new CsvLine();
+            //Skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                record.reset(line);
+                trees.computeIfAbsent(record.get(TAG_GROUPING_INDEX), RollupTree::new)
+                        .tag(record.get(TAG_CODE_INDEX), record.get(TAG_PATH_INDEX).split(PATH_SEPARATOR));
+            }
+        }
+        return trees;
+    }
+
+    private final String grouping;
+    private final Node root;
+    private final Map<String, String[]> tags = new HashMap<>();
+    private final Map<String, Node> scrips = new HashMap<>();
+
+    public RollupTree(final String grouping) {
+        this.grouping = grouping;
+        this.root = new Node(grouping, null);
+    }
+
+    public String getGrouping() {
+        return grouping;
+    }
+
+    /**
+     * Tags the scrip with the given group path.  Must be called before the
+     * cashflows of the scrip are first set.
+     * @param scripCode the scrip code
+     * @param path the names of the groups from the top level down
+     */
+    public void tag(final String scripCode, final String... path) {
+        tags.put(scripCode, path);
+    }
+
+    /**
+     * Sets the cashflows of a scrip, marking the groups containing it stale.
+     * @param scripCode the scrip code
+     * @param cashflows the cashflows of the scrip, including its present value
+     */
+    public void update(final String scripCode, final CashflowBuckets cashflows) {
+        final Node leaf = scrips.computeIfAbsent(scripCode, this::createLeaf);
+        leaf.cashflows = cashflows;
+        for (Node node = leaf; node != null; node = node.parent) {
+            node.stale = true;
+        }
+    }
+
+    /**
+     * Sets the cashflows of a scrip, see {@link #update(String, CashflowBuckets)}.
+     * @param scripCode the scrip code
+     * @param transactions the transactions of the scrip, including its present value
+     */
+    public void update(final String scripCode, final Collection<Transaction> transactions) {
+        update(scripCode, CashflowBuckets.of(transactions));
+    }
+
+    /**
+     * The node holding all scrips of the grouping.
+     * @return the root node
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Visits the group nodes, parents before children, excluding the scrips.
+     * @param visitor the visitor
+     */
+    public void forEachGroup(final Consumer<Node> visitor) {
+        root.forEachGroup(visitor);
+    }
+
+    private Node createLeaf(final String scripCode) {
+        Node parent = root;
+        for (String name : tags.getOrDefault(scripCode, new String[] {UNTAGGED})) {
+            parent = parent.child(name.trim());
+        }
+        final Node leaf = new Node(scripCode, parent);
+        leaf.scrip = true;
+        parent.children.put(scripCode, leaf);
+        return leaf;
+    }
+
+    /**
+     * A group, or a scrip at the bottom of the tree.
+     */
+    public static class Node {
+        private final String name;
+        private final Node parent;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private boolean scrip;
+        private boolean stale = true;
+        private CashflowBuckets cashflows = new CashflowBuckets();
+        private SolveResult result;
+        private boolean solved;
+
+        private Node(final String name, final Node parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The names of the groups from the root down to this node, separated
+         * by <code>/</code>.
+         * @return the path of this node
+         */
+        public String getPath() {
+            return parent == null ? name : parent.getPath() + PATH_SEPARATOR + name;
+        }
+
+        /**
+         * The depth of this node, the root being at depth 0.
+         * @return the depth of this node
+         */
+        public int getDepth() {
+            return parent == null ? 0 : parent.getDepth() + 1;
+        }
+
+        public boolean isScrip() {
+            return scrip;
+        }
+
+        public Collection<Node> getChildren() {
+            return Collections.unmodifiableCollection(children.values());
+        }
+
+        /**
+         * The cashflows of all scrips below this node, merging the cashflows
+         * of the stale children again.
+         * @return the cashflows netted by date
+         */
+        public CashflowBuckets getCashflows() {
+            refresh();
+            return cashflows;
+        }
+
+        /**
+         * The XIRR of all scrips below this node within the default budget,
+         * see {@link #getXirr(NewtonRaphson.Builder)}.
+         * @return the result, see {@link Xirr#solve()}
+         */
+        public SolveResult getXirr() {
+            return getXirr(null);
+        }
+
+        /**
+         * The XIRR of all scrips below this node, solved again only if any of
+         * them changed since the last call, or if the last solve ran out of
+         * time.
+         * @param newtonRaphsonBuilder the budget of the solve, null for the
+         *                             default
+         * @return the result, see {@link Xirr#solve()}
+         */
+        public SolveResult getXirr(final NewtonRaphson.Builder newtonRaphsonBuilder) {
+            refresh();
+            if (!solved) {
+                final Xirr.Builder builder = Xirr.builder()
+                        .withTransactions(cashflows.toTransactions())
+                        .withNewtonRaphsonBuilder(newtonRaphsonBuilder);
+                if (result != null && result.isConverged()) {
+                    // Start from the previous rate, a small change moves it little
+                    builder.withGuess(result.getRoot());
+                }
+                result = builder.solve();
+                // Running out of time says nothing about the cashflows
+                solved = result.getStatus() != SolveResult.Status.DEADLINE_EXCEEDED;
+            }
+            return result;
+        }
+
+        private void refresh() {
+            if (!stale) {
+                return;
+            }
+            if (!scrip) {
+                final CashflowBuckets merged = new CashflowBuckets();
+                for (Node child : children.values()) {
+                    child.refresh();
+                    merged.merge(child.cashflows);
+                }
+                cashflows = merged;
+            }
+            stale = false;
+            solved = false;
+        }
+
+        private Node child(final String name) {
+            return children.computeIfAbsent(name, n -> new Node(n, this));
+        }
+
+        private void forEachGroup(final Consumer<Node> visitor) {
+            if (scrip) {
+                return;
+            }
+            visitor.accept(this);
+            children.values().forEach(child -> child.forEachGroup(visitor));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.Scrip;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Dictionary of scrips keyed by scrip code, assigning each scrip a dense int
+ * id in order of first appearance.
+ * <p>
+ * Codes are looked up by their characters within a line, see
+ * {@link CsvLine}, so that no String is allocated per record: the code and
+ * name are copied out of the line only the first time a scrip is seen.  The
+ * scrips are kept in an array indexed by id, which makes joining the summary
+ * file to the transactions file an array lookup.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class ScripRegistry {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int EMPTY = -1;
+
+    /** Open addressing table of ids, sized to a power of two. */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private Scrip[] scrips = new Scrip[INITIAL_CAPACITY];
+    private int size;
+
+    public ScripRegistry() {
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Id of the scrip whose code is the given field of the line, registering
+     * the scrip with the name in the other field if it is new.
+     * @param line the line holding the scrip code and name
+     * @param codeField the index of the scrip code field
+     * @param nameField the index of the scrip name field
+     * @return the id of the scrip
+     */
+    int register(final CsvLine line, final int codeField, final int nameField) {
+        final int from = line.start(codeField);
+        final int to = line.end(codeField);
+        final int hash = hash(line.line(), from, to);
+        final int slot = find(line.line(), from, to, hash);
+        if (table[slot] != EMPTY) {
+            return table[slot];
+        }
+        return add(slot, hash, new Scrip(line.line().substring(from, to), line.get(nameField)));
+    }
+
+    /**
+     * Id of the scrip with the given code, registering it with the given name
+     * if it is new.
+     * @param scripCode the scrip code
+     * @param scripName the scrip name
+     * @return the id of the scrip
+     */
+    public int register(final String scripCode, final String scripName) {
+        final int hash = hash(scripCode, 0, scripCode.length());
+        final int slot = find(scripCode, 0, scripCode.length(), hash);
+        if (table[slot] != EMPTY) {
+            return table[slot];
+        }
+        return add(slot, hash, new Scrip(scripCode, scripName));
+    }
+
+    /**
+     * Id of the scrip with the given code.
+     * @param scripCode the scrip code
+     * @return the id of the scrip, -1 if it is not registered
+     */
+    public int idOf(final String scripCode) {
+        return table[find(scripCode, 0, scripCode.length(), hash(scripCode, 0, scripCode.length()))];
+    }
+
+    /**
+     * The scrip with the given id.
+     * @param id the id of the scrip
+     * @return the scrip
+     */
+    public Scrip get(final int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No scrip with id " + id);
+        }
+        return scrips[id];
+    }
+
+    /**
+     * The number of registered scrips, ids range from 0 to size - 1.
+     * @return the number of registered scrips
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The registered scrips in order of their ids.
+     * @return unmodifiable list of the scrips
+     */
+    public List<Scrip> scrips() {
+        return Collections.unmodifiableList(Arrays.asList(scrips).subList(0, size));
+    }
+
+    private int add(final int slot, final int hash, final Scrip scrip) {
+        if (size == scrips.length) {
+            scrips = Arrays.copyOf(scrips, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        final int id = size++;
+        scrips[id] = scrip;
+        hashes[id] = hash;
+        table[slot] = id;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private int find(final String chars, final int from, final int to, final int hash) {
+        final int mask = table.length - 1;
+        final int length = to - from;
+        int slot = hash & mask;
+        while (table[slot] != EMPTY) {
+            final int id = table[slot];
+            final String code = scrips[id].getScripCode();
+            if (hashes[id] == hash && code.length() == length && code.regionMatches(0, chars, from, length)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, EMPTY);
+        final int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    private static int hash(final String chars, final int from, final int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        // Spread the bits, the table only uses the low ones
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,192 @@
+package com.amazon.epi.automationdetective.xirr;
+
+/**
+ * Outcome of a {@link NewtonRaphson} solve, reported without throwing.
+ * <p>
+ * Failing steps and invalid inputs are common when solving large batches of
+ * degenerate cashflows, and constructing an exception (with its stack trace)
+ * for each of them is expensive.  Instead, the status tells whether the
+ * method converged and if not, why; the last state of the algorithm is
+ * available via the getters, to allow the caller to adjust the guess and try
+ * again.
+ * <p>
+ * Use {@link #getOrThrow()} to get the exceptions thrown by
+ * {@link NewtonRaphson#inverse(double, double)} instead.
+ */
+public final class SolveResult {
+
+    /**
+     * Reason the algorithm terminated.
+     */
+    public enum Status {
+        /** The function value is within the tolerance of the target. */
+        CONVERGED,
+        /** The candidate value is NaN or infinite. */
+        CANDIDATE_OVERFLOW,
+        /** The function value is NaN or infinite. */
+        VALUE_OVERFLOW,
+        /** The derivative value is NaN or infinite. */
+        DERIVATIVE_OVERFLOW,
+        /** The derivative value is zero. */
+        ZERO_DERIVATIVE,
+        /** The iterations ran out before converging. */
+        NONCONVERGENCE,
+        /** The deadline passed before converging. */
+        DEADLINE_EXCEEDED,
+        /**
+         * The cashflows cannot have a rate of return, e.g. they are all on
+         * the same day or there are no purchases; not solved.
+         */
+        INVALID_CASHFLOWS
+    }
+
+    private final Status status;
+    private final double guess;
+    private final long iteration;
+    private final double candidate;
+    private final double value;
+    private final double derivativeValue;
+    private final boolean derivativeCalculated;
+
+    SolveResult(Status status, double guess, long iteration, double candidate, double value,
+                double derivativeValue, boolean derivativeCalculated) {
+        this.status = status;
+        this.guess = guess;
+        this.iteration = iteration;
+        this.candidate = candidate;
+        this.value = value;
+        this.derivativeValue = derivativeValue;
+        this.derivativeCalculated = derivativeCalculated;
+    }
+
+    /**
+     * Result for a root known without iterating.
+     * @param root the root
+     * @return converged result for the root
+     */
+    static SolveResult exact(double root) {
+        return new SolveResult(Status.CONVERGED, root, 0, root, 0, Double.NaN, false);
+    }
+
+    /**
+     * Result for cashflows which cannot have a rate of return.
+     * @return unsolved result
+     */
+    static SolveResult invalid() {
+        return new SolveResult(Status.INVALID_CASHFLOWS, Double.NaN, 0, Double.NaN, Double.NaN, Double.NaN, false);
+    }
+
+    /**
+     * The reason the algorithm terminated.
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Whether the algorithm converged.
+     * @return true if {@link #getRoot()} is within the tolerance
+     */
+    public boolean isConverged() {
+        return status == Status.CONVERGED;
+    }
+
+    /**
+     * The root found, or NaN if the algorithm did not converge.
+     * @return the root
+     */
+    public double getRoot() {
+        return isConverged() ? candidate : Double.NaN;
+    }
+
+    /**
+     * Get the initial guess used by the algorithm.
+     * @return the initial guess
+     */
+    public double getGuess() {
+        return guess;
+    }
+
+    /**
+     * Get the number of iterations passed when terminating.
+     * @return the number of iterations passed
+     */
+    public long getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Get the last candidate value.
+     * @return the last candidate value
+     */
+    public double getCandidate() {
+        return candidate;
+    }
+
+    /**
+     * Get the last function value, relative to the target.
+     * @return the last function value
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Get the last derivative value, NaN if it was not yet calculated.
+     * @return the last derivative value
+     */
+    public double getDerivativeValue() {
+        return derivativeValue;
+    }
+
+    /**
+     * Whether the derivative was calculated before terminating.
+     * @return true if {@link #getDerivativeValue()} holds a calculated value
+     */
+    public boolean isDerivativeCalculated() {
+        return derivativeCalculated;
+    }
+
+    /**
+     * The root found, throwing the exception matching the status if the
+     * algorithm did not converge.
+     * @return the root
+     * @throws IllegalArgumentException if the cashflows cannot have a rate of
+     *                                  return
+     * @throws ZeroValuedDerivativeException if the derivative was 0
+     * @throws OverflowException when a value involved was infinite or NaN
+     * @throws NonconvergenceException if the method failed to converge in the
+     *                                 given number of iterations or before
+     *                                 the deadline
+     */
+    public double getOrThrow() {
+        switch (status) {
+            case CONVERGED:
+                return candidate;
+            case CANDIDATE_OVERFLOW:
+                throw new OverflowException("Candidate overflow", this);
+            case VALUE_OVERFLOW:
+                throw new OverflowException("Function value overflow", this);
+            case DERIVATIVE_OVERFLOW:
+                throw new OverflowException("Derivative value overflow", this);
+            case ZERO_DERIVATIVE:
+                throw new ZeroValuedDerivativeException(this);
+            case INVALID_CASHFLOWS:
+                throw new IllegalArgumentException("Cashflows cannot have a rate of return");
+            default:
+                throw new NonconvergenceException(guess, iteration);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return '{'
+            + "status=" + status
+            + ", guess=" + guess
+            + ", iteration=" + iteration
+            + ", candidate=" + candidate
+            + ", value=" + value
+            + ", derivative=" + (derivativeCalculated ? String.valueOf(derivativeValue) : "null") + '}';
+    }
+}
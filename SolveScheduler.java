@@ -0,0 +1,333 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.NewtonRaphson;
+import com.amazon.epi.automationdetective.xirr.SolveResult;
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import com.amazon.epi.automationdetective.xirr.Xirr;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solves the XIRR of a batch of scrips within a bounded time, so that a few
+ * pathological scrips cannot hold up the whole batch.
+ * <p>
+ * The cost of a solve is estimated as its number of cashflows times the
+ * number of iterations it took in the previous run, which is kept in a
+ * history file:
+ * <pre>
+ *     Code,Iterations
+ *     INFY,6
+ * </pre>
+ * Scrips are solved cheapest first, each within a budget of cashflow
+ * evaluations, which bounds its iterations, and a deadline.  Scrips are sent
+ * to the fallback queue, see {@link #getFallback()}, to be solved by a
+ * slower but safer method such as bracketing, when:
+ * <ul>
+ *     <li>their estimated cost exceeds the evaluation budget
+ *     ({@link Reason#DOWNGRADED}); the estimate is halved every time, so they
+ *     are tried again eventually</li>
+ *     <li>the batch deadline has passed before their turn, or their solve ran
+ *     out of time ({@link Reason#DEFERRED}); their estimate is kept</li>
+ *     <li>the solve did not converge within its budget
+ *     ({@link Reason#FAILED})</li>
+ * </ul>
+ * The batch deadline starts with the first solve and is shared by all later
+ * ones, so that several batches, and the solves which cannot be scheduled
+ * with the scrips, see {@link #newtonRaphsonBuilder(int)}, are bounded
+ * together.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class SolveScheduler {
+
+    /** Estimate for scrips without history, Newton-Raphson usually converges in a few steps. */
+    private static final long DEFAULT_ITERATIONS = 8;
+    private static final int INDEX_BITS = 24;
+    private static final long MAX_COST = (1L << (Long.SIZE - 1 - INDEX_BITS)) - 1;
+
+    //History file column indices
+    private static final int HISTORY_CODE_INDEX = 0;
+    private static final int HISTORY_ITERATIONS_INDEX = 1;
+
+    /**
+     * Reason a scrip was sent to the fallback queue.
+     */
+    public enum Reason {
+        /** The estimated cost exceeds the evaluation budget, not attempted. */
+        DOWNGRADED,
+        /**
+         * The batch deadline passed before the scrip was attempted, or the
+         * solve ran out of time.
+         */
+        DEFERRED,
+        /** The solve did not converge within the budget. */
+        FAILED
+    }
+
+    private final Map<String, Long> history = new LinkedHashMap<>();
+    private final List<Fallback> fallback = new ArrayList<>();
+    private long evaluationsPerScrip = 1_000_000;
+    private long nanosPerScrip = TimeUnit.SECONDS.toNanos(1);
+    private long nanosPerBatch = TimeUnit.MINUTES.toNanos(5);
+    private boolean started = false;
+    private long batchDeadline;
+
+    /**
+     * Loads the history file, returning a scheduler without history if the
+     * file does not exist.
+     * @param file the history file
+     * @return the scheduler
+     */
+    public static SolveScheduler load(final File file) throws IOException {
+        final SolveScheduler scheduler = new SolveScheduler();
+        if (!file.exists()) {
+            return scheduler;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            final CsvLine record = new CsvLine();
+            //Skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                record.reset(line);
+                scheduler.history.put(record.get(HISTORY_CODE_INDEX),
+                        Long.parseLong(record.get(HISTORY_ITERATIONS_INDEX)));
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Sets the maximum number of cashflow evaluations of each solve, i.e.
+     * cashflows times iterations.
+     * @param evaluationsPerScrip the evaluation budget of each scrip
+     * @return this scheduler
+     */
+    public SolveScheduler withEvaluationsPerScrip(final long evaluationsPerScrip) {
+        if (evaluationsPerScrip < 1) {
+            throw new IllegalArgumentException("Evaluation budget must be positive : " + evaluationsPerScrip);
+        }
+        this.evaluationsPerScrip = evaluationsPerScrip;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time of each solve, one second by default.
+     * @param time the time budget of each scrip
+     * @param unit the unit of the time
+     * @return this scheduler
+     */
+    public SolveScheduler withTimePerScrip(final long time, final TimeUnit unit) {
+        final long nanos = unit.toNanos(time);
+        if (nanos < 1) {
+            throw new IllegalArgumentException("Time per scrip must be positive : " + time + " " + unit);
+        }
+        this.nanosPerScrip = nanos;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time of all solves together, from the first one,
+     * five minutes by default.  Scrips not attempted by then are deferred.
+     * @param time the time budget of the batch
+     * @param unit the unit of the time
+     * @return this scheduler
+     */
+    public SolveScheduler withTimePerBatch(final long time, final TimeUnit unit) {
+        final long nanos = unit.toNanos(time);
+        if (nanos < 1) {
+            throw new IllegalArgumentException("Time per batch must be positive : " + time + " " + unit);
+        }
+        this.nanosPerBatch = nanos;
+        return this;
+    }
+
+    /**
+     * The estimated cost of solving a scrip.
+     * @param scripCode the scrip code
+     * @param cashflows the number of cashflows of the scrip
+     * @return the estimated number of cashflow evaluations
+     */
+    public long estimatedCost(final String scripCode, final int cashflows) {
+        return Math.max(cashflows, 1) * history.getOrDefault(scripCode, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Solves the XIRR of each scrip, cheapest first, within the budgets.
+     * @param scripCodes the code of each scrip
+     * @param positions the transactions of each scrip, in the same order
+     * @return the result of each scrip, null for the scrips which were not
+     *         attempted; see {@link SolveResult.Status#INVALID_CASHFLOWS} for
+     *         the scrips which cannot have an XIRR, e.g. without purchases
+     */
+    public SolveResult[] solve(final List<String> scripCodes, final List<? extends Collection<Transaction>> positions) {
+        if (scripCodes.size() != positions.size()) {
+            throw new IllegalArgumentException("Must have as many scrip codes as positions");
+        }
+        if (positions.size() >= 1 << INDEX_BITS) {
+            throw new IllegalArgumentException("Too many scrips to schedule : " + positions.size());
+        }
+        fallback.clear();
+        final SolveResult[] results = new SolveResult[positions.size()];
+
+        // Sort by cost without boxing: cost in the high bits, index in the low bits
+        final long[] order = new long[positions.size()];
+        for (int i = 0; i < order.length; i++) {
+            final long cost = estimatedCost(scripCodes.get(i), positions.get(i).size());
+            order[i] = Math.min(cost, MAX_COST) << INDEX_BITS | i;
+        }
+        Arrays.sort(order);
+
+        final long batchDeadline = batchDeadline();
+        for (long key : order) {
+            final int i = (int) (key & ((1 << INDEX_BITS) - 1));
+            final String scripCode = scripCodes.get(i);
+            final Collection<Transaction> txs = positions.get(i);
+            final long now = System.nanoTime();
+            if (now - batchDeadline >= 0) {
+                fallback.add(new Fallback(i, scripCode, Reason.DEFERRED, null));
+                continue;
+            }
+            final long maxIterations = evaluationsPerScrip / Math.max(txs.size(), 1);
+            final long expectedIterations = history.getOrDefault(scripCode, DEFAULT_ITERATIONS);
+            if (expectedIterations > maxIterations) {
+                history.put(scripCode, expectedIterations / 2);
+                fallback.add(new Fallback(i, scripCode, Reason.DOWNGRADED, null));
+                continue;
+            }
+
+            final SolveResult result = Xirr.builder()
+                    .withTransactions(txs)
+                    .withNewtonRaphsonBuilder(newtonRaphsonBuilder(maxIterations, now, batchDeadline))
+                    .solve();
+            results[i] = result;
+            if (result.getStatus() == SolveResult.Status.INVALID_CASHFLOWS) {
+                // Cannot have an XIRR, no point retrying it elsewhere
+                continue;
+            }
+            if (result.isConverged()) {
+                history.put(scripCode, Math.max(result.getIteration(), 1));
+            } else if (result.getStatus() == SolveResult.Status.DEADLINE_EXCEEDED) {
+                // Cut off by the time, which says little about its own cost
+                fallback.add(new Fallback(i, scripCode, Reason.DEFERRED, result));
+            } else {
+                if (result.getStatus() == SolveResult.Status.NONCONVERGENCE) {
+                    // Estimate it above the budget so it goes straight to the fallback next time
+                    history.put(scripCode, Math.max(maxIterations, result.getIteration()) + 1);
+                }
+                fallback.add(new Fallback(i, scripCode, Reason.FAILED, result));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * A Newton-Raphson builder within the same budgets as the scheduled
+     * solves, for the solves which cannot be scheduled with the scrips, e.g.
+     * those of groups of scrips which are solved again incrementally.
+     * @param cashflows the number of cashflows of the solve
+     * @return the builder, whose deadline has already passed if the batch
+     *         deadline has
+     */
+    public NewtonRaphson.Builder newtonRaphsonBuilder(final int cashflows) {
+        return newtonRaphsonBuilder(evaluationsPerScrip / Math.max(cashflows, 1), System.nanoTime(),
+                batchDeadline());
+    }
+
+    private NewtonRaphson.Builder newtonRaphsonBuilder(final long maxIterations, final long now,
+                                                       final long batchDeadline) {
+        final long scripDeadline = now + nanosPerScrip;
+        return NewtonRaphson.builder()
+                .withIterations(maxIterations)
+                .withDeadline(batchDeadline - scripDeadline < 0 ? batchDeadline : scripDeadline);
+    }
+
+    /** The batch deadline, starting it if this is the first solve. */
+    private long batchDeadline() {
+        if (!started) {
+            batchDeadline = System.nanoTime() + nanosPerBatch;
+            started = true;
+        }
+        return batchDeadline;
+    }
+
+    /**
+     * The scrips of the last call to {@link #solve(List, List)} left to a
+     * fallback method, in the order they were scheduled.
+     * @return unmodifiable list of the scrips left to a fallback method
+     */
+    public List<Fallback> getFallback() {
+        return Collections.unmodifiableList(fallback);
+    }
+
+    /**
+     * Writes the history file, including the iterations of the last batch.
+     * @param file the history file
+     */
+    public void save(final File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file, false))) {
+            writer.println("Code,Iterations");
+            history.forEach((scripCode, iterations) -> writer.println(scripCode + "," + iterations));
+        }
+    }
+
+    /**
+     * A scrip left to a fallback method.
+     */
+    public static class Fallback {
+        private final int index;
+        private final String scripCode;
+        private final Reason reason;
+        private final SolveResult result;
+
+        private Fallback(final int index, final String scripCode, final Reason reason, final SolveResult result) {
+            this.index = index;
+            this.scripCode = scripCode;
+            this.reason = reason;
+            this.result = result;
+        }
+
+        /**
+         * The index of the scrip in the batch.
+         * @return the index of the scrip
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getScripCode() {
+            return scripCode;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        /**
+         * The result of the failed solve.
+         * @return the result, null if the scrip was not attempted
+         */
+        public SolveResult getResult() {
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return scripCode + " " + reason + (result != null ? " " + result : "");
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.CashflowBuckets;
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import com.amazon.epi.automationdetective.xirr.Xirr;
+import com.google.common.base.Joiner;
+import lombok.SneakyThrows;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Computes XIRR continuously over a feed of transaction records, instead of
+ * loading the complete history before computing anything.
+ * <p>
+ * The feed uses the layout of the transactions file read by
+ * {@link XirrCalculator}.  Since XIRR is anchored at the valuation date, the
+ * only state kept per scrip is its cashflows netted by date, see
+ * {@link CashflowBuckets}, along with the latest market value; memory is
+ * bounded by the number of distinct trading days, not the number of records.
+ * <p>
+ * The XIRR of a scrip is in its own currency, resolved from its first record
+ * as when loading the transactions file.  The cashflows of scrips in another
+ * currency are also kept converted into the reporting currency, and their
+ * market values converted at the rate of the valuation date, for the XIRR of
+ * the portfolio.  Records in a currency without FX rates are reported and
+ * skipped.
+ * <p>
+ * Run {@link #main(String[])} with the transactions file (or <code>-</code>
+ * for standard input), optionally followed by the summary file for market
+ * values and the FX rates file, by default the one of {@link XirrCalculator},
+ * and <code>--follow</code> to keep tailing the transactions file.
+ * Updated results are printed every time the feed goes idle.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class StreamingXirr {
+
+    private static final String FOLLOW = "--follow";
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    private final ScripRegistry registry = new ScripRegistry();
+    private final List<ScripState> scrips = new ArrayList<>();
+    private final CsvLine record = new CsvLine();
+    private final FxRates fxRates;
+
+    /**
+     * Creates a stream converting the cashflows of the portfolio with the
+     * given rates.
+     * @param fxRates the FX rates into the reporting currency
+     */
+    public StreamingXirr(final FxRates fxRates) {
+        this.fxRates = fxRates;
+    }
+
+    /**
+     * Applies one record of the transactions file.
+     * @param line the record
+     */
+    public void accept(final String line) {
+        record.reset(line);
+        final int id = registry.register(record, XirrCalculator.SCRIP_CODE_INDEX, XirrCalculator.SCRIP_NAME_INDEX);
+        final ScripState scrip = state(id);
+        final FxRates.Series fx = fxRates.resolve(id, record, XirrCalculator.TX_CURRENCY_INDEX);
+        final Transaction tx = XirrCalculator.parseTransaction(record, fx);
+        scrip.cashflows.add(tx.getWhen(), tx.getAmount());
+        if (fx != FxRates.Series.IDENTITY) {
+            if (scrip.reportingCashflows == null) {
+                scrip.reportingCashflows = new CashflowBuckets();
+            }
+            scrip.reportingCashflows.add(tx.getWhen(), tx.toReportingCurrency().getAmount());
+        }
+    }
+
+    /**
+     * Sets the current market value of a scrip, which is used as its present
+     * value on the valuation date.
+     * @param scripCode the scrip code
+     * @param scripName the scrip name
+     * @param currency the currency of the market value, null if it is the one
+     *                 of the transactions of the scrip
+     * @param marketValue the current market value of the holding
+     */
+    public void updateMarketValue(final String scripCode, final String scripName, final String currency,
+                                  final double marketValue) {
+        final int id = registry.register(scripCode, scripName);
+        if (currency != null && !currency.isEmpty()) {
+            fxRates.resolve(id, currency);
+        }
+        state(id).marketValue = marketValue;
+    }
+
+    /**
+     * Reads records until the end of the reader.  When following, waits for
+     * further records instead, running <code>onIdle</code> every time the
+     * reader runs out of records after new ones were applied.  A last record
+     * without a new line is only applied once the new line arrives, as it may
+     * still be being written, unless the reader is not followed.  Records
+     * which cannot be parsed are reported and skipped.
+     * @param reader the feed
+     * @param follow whether to keep polling once the end is reached
+     * @param onIdle run when no further records are available yet
+     */
+    public void consume(final Reader reader, final boolean follow, final Runnable onIdle)
+            throws IOException, InterruptedException {
+        final char[] buffer = new char[8192];
+        final StringBuilder pending = new StringBuilder();
+        boolean dirty = false;
+        while (true) {
+            final int read = reader.read(buffer);
+            if (read > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        pending.append(buffer, start, i - start);
+                        dirty |= acceptPending(pending);
+                        start = i + 1;
+                    }
+                }
+                pending.append(buffer, start, read - start);
+                continue;
+            }
+            if (!follow) {
+                //The feed is complete, its last record needs no new line
+                dirty |= acceptPending(pending);
+            }
+            if (dirty) {
+                onIdle.run();
+                dirty = false;
+            }
+            if (!follow) {
+                return;
+            }
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Applies the complete record held by the buffer and empties it,
+     * returning whether a record was applied.
+     */
+    private boolean acceptPending(final StringBuilder pending) {
+        int length = pending.length();
+        if (length > 0 && pending.charAt(length - 1) == '\r') {
+            length--;
+        }
+        final String line = pending.substring(0, length);
+        pending.setLength(0);
+        if (line.isEmpty()) {
+            return false;
+        }
+        try {
+            accept(line);
+            return true;
+        } catch (RuntimeException e) {
+            System.out.println("Skipping invalid transaction record : " + line + " " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * XIRR of a scrip as of the valuation date, in the currency of the scrip.
+     * @param scripCode the scrip code
+     * @param valuationDate the date of the present value of the holding
+     * @return the XIRR, NaN if the scrip has no purchases or the solve fails
+     */
+    public double xirr(final String scripCode, final LocalDate valuationDate) {
+        final int id = registry.idOf(scripCode);
+        if (id < 0) {
+            return Double.NaN;
+        }
+        return xirr(scrips.get(id).cashflows, scrips.get(id).marketValue, valuationDate);
+    }
+
+    /**
+     * XIRR of all scrips together as of the valuation date, in the reporting
+     * currency.
+     * @param valuationDate the date of the present value of the holdings
+     * @return the XIRR, NaN if there are no purchases or the solve fails
+     */
+    public double portfolioXirr(final LocalDate valuationDate) {
+        final CashflowBuckets cashflows = new CashflowBuckets();
+        double marketValue = 0;
+        for (int id = 0; id < scrips.size(); id++) {
+            final ScripState scrip = scrips.get(id);
+            cashflows.merge(scrip.reportingCashflows != null ? scrip.reportingCashflows : scrip.cashflows);
+            marketValue += scrip.marketValue * fxRates.seriesOf(id).rate(valuationDate.toEpochDay());
+        }
+        return xirr(cashflows, marketValue, valuationDate);
+    }
+
+    private static double xirr(final CashflowBuckets cashflows, final double marketValue,
+                               final LocalDate valuationDate) {
+        final List<Transaction> txs = cashflows.toTransactions();
+        if (marketValue > 0) {
+            txs.add(new Transaction(marketValue, valuationDate));
+        }
+        return new Xirr(txs).solve().getRoot();
+    }
+
+    private ScripState state(final int id) {
+        while (scrips.size() <= id) {
+            scrips.add(new ScripState());
+        }
+        return scrips.get(id);
+    }
+
+    private void print() {
+        final LocalDate now = LocalDate.now();
+        final Joiner csvJoiner = Joiner.on(",");
+        System.out.println(csvJoiner.join("Portfolio", "Portfolio", toPercent(() -> portfolioXirr(now))));
+        registry.scrips().forEach(scrip -> System.out.println(csvJoiner.join(scrip.getScripCode(),
+                scrip.getScripName(), toPercent(() -> xirr(scrip.getScripCode(), now)))));
+    }
+
+    private static String toPercent(final DoubleSupplier rate) {
+        try {
+            return String.valueOf(rate.getAsDouble() * 100);
+        } catch (Exception e) {
+            return "Exception occurred while calculating xirr : " + e.getMessage();
+        }
+    }
+
+    @SneakyThrows
+    public static void main(String[] args) {
+        final boolean follow = args.length > 0 && FOLLOW.equals(args[args.length - 1]);
+        final int paths = follow ? args.length - 1 : args.length;
+        final String txPath = paths > 0 ? args[0] : "-";
+        //File containing FX rates into the reporting currency [optional]
+        final File fxFile = new File(paths > 2 ? args[2] : "src/main/resources/pf/dummy_fx_rates.csv");
+        final FxRates fxRates = FxRates.load(fxFile, XirrCalculator.REPORTING_CURRENCY);
+        final StreamingXirr streamingXirr = new StreamingXirr(fxRates);
+
+        if (paths > 1) {
+            //Use summary file to get the current market values
+            final Scanner summaryParser = new Scanner(new File(args[1]));
+            if (summaryParser.hasNext()) {
+                summaryParser.nextLine();
+            }
+            while (summaryParser.hasNext()) {
+                final String[] record = summaryParser.nextLine().split(",");
+                final int qty = Integer.parseInt(record[XirrCalculator.SUMMARY_HOLDING_QTY_INDEX]);
+                final double marketValue = Double.parseDouble(record[XirrCalculator.SUMMARY_MARKET_VALUE_INDEX]);
+                final String currency = record.length > XirrCalculator.SUMMARY_CURRENCY_INDEX
+                        ? record[XirrCalculator.SUMMARY_CURRENCY_INDEX] : null;
+                streamingXirr.updateMarketValue(record[XirrCalculator.SCRIP_CODE_INDEX],
+                        record[XirrCalculator.SCRIP_NAME_INDEX], currency, qty > 0 ? marketValue : 0);
+            }
+            summaryParser.close();
+        }
+
+        try (BufferedReader reader = "-".equals(txPath)
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(txPath))) {
+            //Skip the header
+            reader.readLine();
+            streamingXirr.consume(reader, follow, streamingXirr::print);
+        }
+    }
+
+    private static class ScripState {
+        final CashflowBuckets cashflows = new CashflowBuckets();
+        /** The cashflows in the reporting currency, null if it is the currency of the scrip. */
+        CashflowBuckets reportingCashflows;
+        double marketValue;
+    }
+}
@@ -12,12 +12,20 @@ import java.util.Date;
  * withdrawals from your cash).  Positive amounts represent withdrawals from the
  * investment (deposits into cash).  Zero amounts are allowed in case your
  * investment is now worthless.
+ * <p>
+ * Amounts and prices are in the currency of the transaction.  Transactions in
+ * a foreign currency also record the rate converting them into the reporting
+ * currency, see {@link #toReportingCurrency()}.
  * @see Xirr
  */
 public class Transaction {
 
     final double amount;
     final LocalDate when;
+    final double units;
+    final double price;
+    final String currency;
+    final double fxRate;
 
     /**
      * Construct a Transaction instance with the given amount at the given day.
@@ -25,8 +33,42 @@ public class Transaction {
      * @param when the day the transaction took place
      */
     public Transaction(double amount, LocalDate when) {
+        this(amount, when, 0, Double.NaN);
+    }
+
+    /**
+     * Construct a Transaction instance with the given amount at the given day,
+     * recording the units traded and the unit price they were traded at.
+     * @param amount the amount transferred
+     * @param when the day the transaction took place
+     * @param units the units bought (positive) or sold (negative)
+     * @param price the unit price of the transaction
+     * @see PeriodReturns
+     */
+    public Transaction(double amount, LocalDate when, double units, double price) {
+        this(amount, when, units, price, null, 1);
+    }
+
+    /**
+     * Construct a Transaction instance with the given amount at the given day
+     * in a foreign currency, recording the units traded, the unit price they
+     * were traded at and the rate converting the currency into the reporting
+     * currency on that day.
+     * @param amount the amount transferred, in the given currency
+     * @param when the day the transaction took place
+     * @param units the units bought (positive) or sold (negative)
+     * @param price the unit price of the transaction, in the given currency
+     * @param currency the currency, null for the reporting currency
+     * @param fxRate the units of reporting currency per unit of the currency
+     */
+    public Transaction(double amount, LocalDate when, double units, double price,
+                       String currency, double fxRate) {
         this.amount = amount;
         this.when = when;
+        this.units = units;
+        this.price = price;
+        this.currency = currency;
+        this.fxRate = fxRate;
     }
 
     /**
@@ -35,8 +77,20 @@ public class Transaction {
      * @param when the day the transaction took place
      */
     public Transaction(double amount, Date when) {
-        this.amount = amount;
-        this.when = LocalDate.from(when.toInstant().atZone(ZoneId.systemDefault()));
+        this(amount, when, 0, Double.NaN);
+    }
+
+    /**
+     * Construct a Transaction instance with the given amount at the given day,
+     * recording the units traded and the unit price they were traded at.
+     * @param amount the amount transferred
+     * @param when the day the transaction took place
+     * @param units the units bought (positive) or sold (negative)
+     * @param price the unit price of the transaction
+     * @see PeriodReturns
+     */
+    public Transaction(double amount, Date when, double units, double price) {
+        this(amount, LocalDate.from(when.toInstant().atZone(ZoneId.systemDefault())), units, price);
     }
 
     /**
@@ -47,8 +101,48 @@ public class Transaction {
      *             for the format
      */
     public Transaction(double amount, String when) {
-        this.amount = amount;
-        this.when = LocalDate.parse(when);
+        this(amount, LocalDate.parse(when));
+    }
+
+    /**
+     * Construct a Transaction instance for a cashflow which does not trade any
+     * units, such as a dividend.  It has no units and a zero price.
+     * @param amount the amount transferred
+     * @param when the day the cashflow took place
+     * @return the transaction
+     */
+    public static Transaction income(double amount, LocalDate when) {
+        return new Transaction(amount, when, 0, 0);
+    }
+
+    /**
+     * Copy of this transaction in the given currency.
+     * @param currency the currency, null for the reporting currency
+     * @param fxRate the units of reporting currency per unit of the currency
+     * @return the transaction in the given currency
+     */
+    public Transaction withFx(String currency, double fxRate) {
+        return new Transaction(amount, when, units, price, currency, fxRate);
+    }
+
+    /**
+     * This transaction converted into the reporting currency at its rate.
+     * @return the transaction in the reporting currency, this instance if it
+     *         already is
+     */
+    public Transaction toReportingCurrency() {
+        if (currency == null && fxRate == 1) {
+            return this;
+        }
+        return new Transaction(amount * fxRate, when, units, price * fxRate, null, 1);
+    }
+
+    /**
+     * Whether this transaction is a cashflow which does not trade any units.
+     * @return true if created by {@link #income(double, LocalDate)}
+     */
+    public boolean isIncome() {
+        return units == 0 && price == 0;
     }
 
     /**
@@ -66,4 +160,37 @@ public class Transaction {
     public LocalDate getWhen() {
         return when;
     }
+
+    /**
+     * The units bought (positive) or sold (negative) in this transaction.
+     * @return units traded in this transaction, zero if not known
+     */
+    public double getUnits() {
+        return units;
+    }
+
+    /**
+     * The unit price this transaction was traded at.
+     * @return unit price of this transaction, NaN if not known
+     */
+    public double getPrice() {
+        return price;
+    }
+
+    /**
+     * The currency of the amount and price of this transaction.
+     * @return the currency, null for the reporting currency
+     */
+    public String getCurrency() {
+        return currency;
+    }
+
+    /**
+     * The rate converting the currency of this transaction into the
+     * reporting currency on the day of the transaction.
+     * @return the units of reporting currency per unit of the currency
+     */
+    public double getFxRate() {
+        return fxRate;
+    }
 }
@@ -0,0 +1,569 @@
+package com.portfolio.evaluator;
+
+import com.amazon.epi.automationdetective.xirr.Scrip;
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistent store of the parsed transactions, so that each run only parses
+ * the rows appended to the transactions file since the previous run.
+ * <p>
+ * The store is a directory holding two files:
+ * <ul>
+ *     <li><code>transactions.log</code>, an append-only log of records, each
+ *     one prefixed by its length and CRC32: a scrip record the first time a
+ *     scrip is seen, one record per transaction and a commit record at the
+ *     end of each run, holding the watermark, i.e. the offset in the
+ *     transactions file up to which its rows are in the log</li>
+ *     <li><code>transactions.idx</code>, a snapshot of the scrips and of the
+ *     offsets of the transaction records of each scrip, covering the log up
+ *     to a given length and written atomically after each commit</li>
+ * </ul>
+ * Opening the store reads the index and only scans the part of the log it
+ * does not cover.  Records after the last valid commit, left by a crash in
+ * the middle of a run, are truncated, so their rows are parsed again by the
+ * next run.  If the transactions file is shorter than the watermark, or the
+ * last 4KB before the watermark no longer match their checksum, e.g. because
+ * the file was regenerated instead of appended to, the log is rebuilt from
+ * scratch.  Only that tail is checked, so that a run does not read the whole
+ * file again: an edit to an earlier row goes unnoticed, and the store has to
+ * be deleted for it to be picked up.
+ * <p>
+ * Transactions are stored as parsed, in the currency of their scrip; FX
+ * rates and corporate actions are applied when the log is loaded, see
+ * {@link #load(ScripRegistry, FxRates, CorporateActions)}, so that updated
+ * rates and events apply to the whole history.  Loading maps the log into
+ * memory instead of reading it through a stream.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class TransactionLog implements Closeable {
+
+    private static final String LOG_FILE = "transactions.log";
+    private static final String INDEX_FILE = "transactions.idx";
+    private static final long LOG_MAGIC = 0x5046_5458_4C4F_4731L;
+    private static final long INDEX_MAGIC = 0x5046_5458_4944_5831L;
+    private static final int LOG_HEADER_BYTES = Long.BYTES;
+
+    private static final byte SCRIP_RECORD = 1;
+    private static final byte TX_RECORD = 2;
+    private static final byte COMMIT_RECORD = 3;
+    /** Length and CRC32 of the payload. */
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int TX_PAYLOAD_BYTES = 1 + Integer.BYTES + Long.BYTES + 3 * Double.BYTES;
+    /** Bytes of the transactions file before the watermark checked for changes. */
+    private static final int SOURCE_CHECK_BYTES = 4096;
+    private static final int BUFFER_BYTES = 1 << 20;
+    /** A mapped buffer cannot exceed 2GB. */
+    private static final long MAX_MAP_BYTES = 1 << 30;
+    private static final byte NEW_LINE = '\n';
+
+    private final Path logPath;
+    private final Path indexPath;
+    private final FileChannel channel;
+
+    /** Committed length of the log. */
+    private long length;
+    private long watermark;
+    private int watermarkCrc;
+    /** Scrips of the log, by id in the log. */
+    private ScripRegistry scrips = new ScripRegistry();
+    private List<String> currencies = new ArrayList<>();
+    /** Offsets of the transaction records of each scrip, by id in the log. */
+    private long[][] offsets = new long[0][];
+    private int[] counts = new int[0];
+
+    private TransactionLog(final Path directory) throws IOException {
+        logPath = directory.resolve(LOG_FILE);
+        indexPath = directory.resolve(INDEX_FILE);
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it does not
+     * exist and recovering it if the previous run did not complete.
+     * @param directory the directory of the store
+     * @return the store
+     */
+    public static TransactionLog open(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        final TransactionLog log = new TransactionLog(directory);
+        try {
+            log.recover();
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * The offset in the transactions file up to which its rows are in the log.
+     * @return the watermark
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * The number of scrips in the log.
+     * @return the number of scrips
+     */
+    public int size() {
+        return scrips.size();
+    }
+
+    /**
+     * Appends the complete rows of the transactions file after the watermark
+     * to the log and commits them.  A last row without a new line is left for
+     * the next run, as it may still be being written.
+     * @param txFile the transactions file
+     * @return the number of transactions appended
+     */
+    public int append(final File txFile) throws IOException {
+        try (FileChannel source = FileChannel.open(txFile.toPath(), StandardOpenOption.READ)) {
+            if (watermark > source.size() || sourceCrc(source, watermark) != watermarkCrc) {
+                reset();
+            }
+
+            final ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+            final ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+            final CsvLine record = new CsvLine();
+            byte[] line = new byte[256];
+            int lineLength = 0;
+            // The header is the first line of the file
+            boolean header = watermark == 0;
+            long position = watermark;
+            long consumed = watermark;
+            long end = length;
+            int appended = 0;
+            while (source.read(in, position) > 0) {
+                in.flip();
+                position += in.remaining();
+                while (in.hasRemaining()) {
+                    final byte b = in.get();
+                    if (b != NEW_LINE) {
+                        if (lineLength == line.length) {
+                            line = Arrays.copyOf(line, line.length * 2);
+                        }
+                        line[lineLength++] = b;
+                        continue;
+                    }
+                    consumed = position - in.remaining();
+                    if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                        lineLength--;
+                    }
+                    if (!header && lineLength > 0) {
+                        record.reset(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+                        end = appendRecord(record, out, end);
+                        appended++;
+                    }
+                    header = false;
+                    lineLength = 0;
+                }
+                in.clear();
+            }
+
+            if (consumed == watermark) {
+                return 0;
+            }
+            final int crc = sourceCrc(source, consumed);
+            end = ensureCapacity(out, end, RECORD_HEADER_BYTES + 1 + Long.BYTES + Integer.BYTES);
+            final int start = beginRecord(out, COMMIT_RECORD);
+            out.putLong(consumed);
+            out.putInt(crc);
+            endRecord(out, start);
+            end = flush(out, end);
+            channel.force(false);
+            length = end;
+            watermark = consumed;
+            watermarkCrc = crc;
+            writeIndex();
+            return appended;
+        }
+    }
+
+    /**
+     * Loads the transactions of the log into the scrips of the registry, in
+     * the order they were appended, converting them into the reporting
+     * currency and applying the corporate actions.
+     * @param registry the registry to load into
+     * @param fxRates the FX rates
+     * @param corporateActions the corporate actions
+     */
+    public void load(final ScripRegistry registry, final FxRates fxRates, final CorporateActions corporateActions)
+            throws IOException {
+        final int[] scripIds = new int[scrips.size()];
+        final FxRates.Series[] series = new FxRates.Series[scrips.size()];
+        long position = LOG_HEADER_BYTES;
+        while (position < length) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAX_MAP_BYTES, length - position));
+            while (buffer.remaining() >= RECORD_HEADER_BYTES
+                    && buffer.remaining() - RECORD_HEADER_BYTES >= buffer.getInt(buffer.position())) {
+                final int payload = buffer.getInt();
+                // Records before the committed length were checked when they
+                // were appended or recovered
+                buffer.getInt();
+                final int next = buffer.position() + payload;
+                final byte type = buffer.get();
+                if (type == SCRIP_RECORD) {
+                    final int logId = buffer.getInt();
+                    final Scrip scrip = scrips.get(logId);
+                    scripIds[logId] = registry.register(scrip.getScripCode(), scrip.getScripName());
+                    series[logId] = fxRates.resolve(scripIds[logId], currencies.get(logId));
+                } else if (type == TX_RECORD) {
+                    final int logId = buffer.getInt();
+                    final Transaction tx = readTransaction(buffer);
+                    final Scrip scrip = registry.get(scripIds[logId]);
+                    scrip.getTransactions().add(
+                            corporateActions.apply(scripIds[logId], scrip, series[logId].convert(tx)));
+                }
+                buffer.position(next);
+            }
+            position += buffer.position();
+        }
+    }
+
+    /**
+     * The transactions of one scrip, read through the index without loading
+     * the rest of the log.
+     * @param scripCode the scrip code
+     * @return the transactions of the scrip as parsed, in the currency of the
+     *         scrip and without corporate actions applied
+     */
+    public List<Transaction> transactions(final String scripCode) throws IOException {
+        final int logId = scrips.idOf(scripCode);
+        if (logId < 0) {
+            return new ArrayList<>();
+        }
+        final List<Transaction> transactions = new ArrayList<>(counts[logId]);
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + TX_PAYLOAD_BYTES);
+        for (int i = 0; i < counts[logId]; i++) {
+            buffer.clear();
+            channel.read(buffer, offsets[logId][i]);
+            buffer.flip();
+            // Skip the record header, type and scrip id
+            buffer.position(RECORD_HEADER_BYTES + 1 + Integer.BYTES);
+            transactions.add(readTransaction(buffer));
+        }
+        return transactions;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long appendRecord(final CsvLine record, final ByteBuffer out, long end) throws IOException {
+        final int logId = scrips.register(record, XirrCalculator.SCRIP_CODE_INDEX, XirrCalculator.SCRIP_NAME_INDEX);
+        if (logId == currencies.size()) {
+            final Scrip scrip = scrips.get(logId);
+            final String currency = record.fields() > XirrCalculator.TX_CURRENCY_INDEX
+                    ? record.get(XirrCalculator.TX_CURRENCY_INDEX) : "";
+            currencies.add(currency);
+            final byte[] code = scrip.getScripCode().getBytes(StandardCharsets.UTF_8);
+            final byte[] name = scrip.getScripName().getBytes(StandardCharsets.UTF_8);
+            final byte[] currencyBytes = currency.getBytes(StandardCharsets.UTF_8);
+            end = ensureCapacity(out, end, RECORD_HEADER_BYTES + 1 + Integer.BYTES + 3 * Short.BYTES
+                    + code.length + name.length + currencyBytes.length);
+            final int start = beginRecord(out, SCRIP_RECORD);
+            out.putInt(logId);
+            putString(out, code);
+            putString(out, name);
+            putString(out, currencyBytes);
+            endRecord(out, start);
+        }
+
+        final Transaction tx = XirrCalculator.parseTransaction(record);
+        end = ensureCapacity(out, end, RECORD_HEADER_BYTES + TX_PAYLOAD_BYTES);
+        addOffset(logId, end + out.position());
+        final int start = beginRecord(out, TX_RECORD);
+        out.putInt(logId);
+        out.putLong(tx.getWhen().toEpochDay());
+        out.putDouble(tx.getAmount());
+        out.putDouble(tx.getUnits());
+        out.putDouble(tx.getPrice());
+        endRecord(out, start);
+        return end;
+    }
+
+    /** Flushes the buffer to the log if it cannot hold the given bytes. */
+    private long ensureCapacity(final ByteBuffer out, final long end, final int bytes) throws IOException {
+        if (bytes > out.capacity()) {
+            throw new IllegalStateException("Transaction record too large : " + bytes + " bytes");
+        }
+        if (out.remaining() < bytes) {
+            return flush(out, end);
+        }
+        return end;
+    }
+
+    /** Writes the buffer at the given offset of the log, returning the new end. */
+    private long flush(final ByteBuffer out, long end) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            end += channel.write(out, end);
+        }
+        out.clear();
+        return end;
+    }
+
+    /** Reserves the record header, returning the position of the record. */
+    private static int beginRecord(final ByteBuffer out, final byte type) {
+        final int start = out.position();
+        out.position(start + RECORD_HEADER_BYTES);
+        out.put(type);
+        return start;
+    }
+
+    /** Fills in the header of the record written since it began. */
+    private static void endRecord(final ByteBuffer out, final int start) {
+        final int payload = out.position() - start - RECORD_HEADER_BYTES;
+        final ByteBuffer bytes = out.duplicate();
+        bytes.position(start + RECORD_HEADER_BYTES);
+        bytes.limit(out.position());
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.putInt(start, payload);
+        out.putInt(start + Integer.BYTES, (int) crc.getValue());
+    }
+
+    /**
+     * The payload of the record at the given offset of the log, null if the
+     * record is incomplete or its checksum does not match.
+     */
+    private ByteBuffer readRecord(final long position, final long size) throws IOException {
+        if (size - position < RECORD_HEADER_BYTES) {
+            return null;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(channel, header, position);
+        final int payload = header.getInt(0);
+        if (payload <= 0 || payload > size - position - RECORD_HEADER_BYTES || payload > BUFFER_BYTES) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(payload);
+        readFully(channel, buffer, position + RECORD_HEADER_BYTES);
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue() == header.getInt(Integer.BYTES) ? buffer : null;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // Read until full or end of file
+        }
+        buffer.flip();
+    }
+
+    private static void putString(final ByteBuffer out, final byte[] bytes) {
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Transaction readTransaction(final ByteBuffer buffer) {
+        final LocalDate when = LocalDate.ofEpochDay(buffer.getLong());
+        final double amount = buffer.getDouble();
+        final double units = buffer.getDouble();
+        final double price = buffer.getDouble();
+        return new Transaction(amount, when, units, price);
+    }
+
+    private void addOffset(final int logId, final long offset) {
+        if (logId >= counts.length) {
+            final int size = Math.max(logId + 1, counts.length * 2);
+            offsets = Arrays.copyOf(offsets, size);
+            counts = Arrays.copyOf(counts, size);
+        }
+        if (offsets[logId] == null) {
+            offsets[logId] = new long[4];
+        } else if (counts[logId] == offsets[logId].length) {
+            offsets[logId] = Arrays.copyOf(offsets[logId], counts[logId] * 2);
+        }
+        offsets[logId][counts[logId]++] = offset;
+    }
+
+    /** CRC32 of the bytes of the transactions file just before the offset. */
+    private static int sourceCrc(final FileChannel source, final long offset) throws IOException {
+        final long from = Math.max(0, offset - SOURCE_CHECK_BYTES);
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (offset - from));
+        readFully(source, buffer, from);
+        final CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    /** Empties the log, e.g. when the transactions file was replaced. */
+    private void reset() throws IOException {
+        channel.truncate(0);
+        final ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        header.putLong(LOG_MAGIC);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(false);
+        Files.deleteIfExists(indexPath);
+        clear();
+    }
+
+    private void clear() {
+        length = LOG_HEADER_BYTES;
+        watermark = 0;
+        // CRC32 of no bytes
+        watermarkCrc = 0;
+        scrips = new ScripRegistry();
+        currencies = new ArrayList<>();
+        offsets = new long[0][];
+        counts = new int[0];
+    }
+
+    private void recover() throws IOException {
+        final long size = channel.size();
+        if (size < LOG_HEADER_BYTES) {
+            // New, or the header itself was not written
+            reset();
+            return;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        readFully(channel, header, 0);
+        if (header.getLong() != LOG_MAGIC) {
+            throw new IllegalStateException("Not a transaction log : " + logPath);
+        }
+        if (!readIndex(size)) {
+            clear();
+        }
+
+        // Find the last commit in the part of the log the index does not cover
+        long committed = length;
+        long position = length;
+        ByteBuffer record;
+        while ((record = readRecord(position, size)) != null) {
+            position += RECORD_HEADER_BYTES + record.limit();
+            if (record.get(0) == COMMIT_RECORD) {
+                committed = position;
+            }
+        }
+        if (committed < size) {
+            // Drop the records of an incomplete run, or a torn write
+            channel.truncate(committed);
+            channel.force(false);
+        }
+        if (committed == length) {
+            return;
+        }
+
+        position = length;
+        while (position < committed) {
+            record = readRecord(position, committed);
+            final byte type = record.get();
+            if (type == SCRIP_RECORD) {
+                record.getInt();
+                scrips.register(getString(record), getString(record));
+                currencies.add(getString(record));
+            } else if (type == TX_RECORD) {
+                addOffset(record.getInt(), position);
+            } else if (type == COMMIT_RECORD) {
+                watermark = record.getLong();
+                watermarkCrc = record.getInt();
+            }
+            position += RECORD_HEADER_BYTES + record.limit();
+        }
+        length = committed;
+        writeIndex();
+    }
+
+    /**
+     * Reads the index, returning false if it is missing, damaged or does not
+     * match the log.
+     */
+    private boolean readIndex(final long size) throws IOException {
+        if (!Files.exists(indexPath)) {
+            return false;
+        }
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(indexPath)), new CRC32());
+             DataInputStream in = new DataInputStream(checked)) {
+            if (in.readLong() != INDEX_MAGIC) {
+                return false;
+            }
+            length = in.readLong();
+            watermark = in.readLong();
+            watermarkCrc = in.readInt();
+            final int scripCount = in.readInt();
+            scrips = new ScripRegistry();
+            currencies = new ArrayList<>(scripCount);
+            offsets = new long[scripCount][];
+            counts = new int[scripCount];
+            for (int logId = 0; logId < scripCount; logId++) {
+                scrips.register(in.readUTF(), in.readUTF());
+                currencies.add(in.readUTF());
+                counts[logId] = in.readInt();
+                offsets[logId] = new long[Math.max(counts[logId], 4)];
+                for (int i = 0; i < counts[logId]; i++) {
+                    offsets[logId][i] = in.readLong();
+                }
+            }
+            final int expected = (int) checked.getChecksum().getValue();
+            return in.readInt() == expected && length >= LOG_HEADER_BYTES && length <= size;
+        } catch (IOException | RuntimeException e) {
+            // Rebuilt from the log
+            return false;
+        }
+    }
+
+    /** Writes the index to a temporary file which then replaces it. */
+    private void writeIndex() throws IOException {
+        final Path temporary = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+        try (CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary)), new CRC32());
+             DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeLong(INDEX_MAGIC);
+            out.writeLong(length);
+            out.writeLong(watermark);
+            out.writeInt(watermarkCrc);
+            out.writeInt(scrips.size());
+            for (int logId = 0; logId < scrips.size(); logId++) {
+                final Scrip scrip = scrips.get(logId);
+                out.writeUTF(scrip.getScripCode());
+                out.writeUTF(scrip.getScripName());
+                out.writeUTF(currencies.get(logId));
+                final int count = logId < counts.length ? counts[logId] : 0;
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(offsets[logId][i]);
+                }
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+        }
+        Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
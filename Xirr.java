@@ -2,8 +2,6 @@ package com.amazon.epi.automationdetective.xirr;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
-import java.util.stream.Collectors;
 
 import static java.time.temporal.ChronoUnit.DAYS;
 
@@ -43,12 +41,17 @@ import static java.time.temporal.ChronoUnit.DAYS;
  *         ).xirr();
  * </code>
  * <p>
+ * Transactions on the same day are netted before solving, so the cost of each
+ * Newton-Raphson iteration is proportional to the number of distinct dates.
+ * Use {@link Builder#withDayTolerance(int, double)} to further coalesce
+ * cashflows lying within a few days of each other.
+ * <p>
  * This class is not thread-safe and is designed for each instance to be used
  * once.
  */
 public class Xirr {
 
-    private static final double DAYS_IN_YEAR = 365;
+    static final double DAYS_IN_YEAR = 365;
 
     /**
      * Convenience method for getting an instance of a {@link Builder}.
@@ -58,59 +61,61 @@ public class Xirr {
         return new Builder();
     }
 
-    private final List<Investment> investments;
+    private final CashflowEvaluator evaluator;
+    private final CashflowEvaluator exactEvaluator;
     private final XirrDetails details;
+    private final boolean valid;
+    private final double maxCoalescingError;
 
     private NewtonRaphson.Builder builder = null;
     private Double guess = null;
+    private double coalescingError = 0;
 
     /**
      * Construct an Xirr instance for the given transactions.
      * @param tx the transactions
-     * @throws IllegalArgumentException if there are fewer than 2 transactions
-     * @throws IllegalArgumentException if all the transactions are on the same date
-     * @throws IllegalArgumentException if all the transactions negative (deposits)
-     * @throws IllegalArgumentException if all the transactions non-negative (withdrawals)
+     * @see #xirr()
      */
     public Xirr(Transaction... tx) {
         this(Arrays.asList(tx));
     }
 
     /**
-     * Construct an Xirr instance for the given transactions.
+     * Construct an Xirr instance for the given transactions.  Transactions
+     * which cannot have a rate of return are only reported when solving, see
+     * {@link #solve()}.
      * @param txs the transactions
-     * @throws IllegalArgumentException if there are fewer than 2 transactions
-     * @throws IllegalArgumentException if all the transactions are on the same date
-     * @throws IllegalArgumentException if all the transactions negative (deposits)
-     * @throws IllegalArgumentException if all the transactions non-negative (withdrawals)
+     * @see #xirr()
      */
     public Xirr(Collection<Transaction> txs) {
-        this(txs, null, null);
+        this(txs, null, null, 0, 0);
     }
 
-    private Xirr(Collection<Transaction> txs, NewtonRaphson.Builder builder, Double guess) {
-        if (txs.size() < 2) {
-            throw new IllegalArgumentException(
-                "Must have at least two transactions");
-        }
+    private Xirr(Collection<Transaction> txs, NewtonRaphson.Builder builder, Double guess,
+                 int dayTolerance, double maxCoalescingError) {
         details = txs.stream().collect(XirrDetails.collector());
-        details.validate();
-        investments = txs.stream()
-            .map(this::createInvestment)
-            .collect(Collectors.toList());
+        valid = details.problem() == null;
+        if (valid) {
+            // Net the transactions of each day, the rate only depends on the totals
+            final CashflowBuckets netted = CashflowBuckets.of(txs);
+            exactEvaluator = createEvaluator(netted);
+            evaluator = dayTolerance > 0
+                ? createEvaluator(netted.coalesce(dayTolerance))
+                : exactEvaluator;
+        } else {
+            exactEvaluator = null;
+            evaluator = null;
+        }
 
         this.builder = builder != null ? builder : NewtonRaphson.builder();
         this.guess = guess;
+        this.maxCoalescingError = maxCoalescingError;
     }
 
-    private Investment createInvestment(Transaction tx) {
-        // Transform the transaction into an Investment instance
-        // It is much easier to calculate the present value of an Investment
-        final Investment result = new Investment();
-        result.amount = tx.amount;
-        // Don't use YEARS.between() as it returns whole numbers
-        result.years = DAYS.between(tx.when, details.end) / DAYS_IN_YEAR;
-        return result;
+    private CashflowEvaluator createEvaluator(CashflowBuckets buckets) {
+        // Transform the cashflows into an evaluator over primitive arrays
+        // It is much easier to calculate the present value that way
+        return new CashflowEvaluator(buckets, details.end.toEpochDay(), DAYS_IN_YEAR);
     }
 
     /**
@@ -119,103 +124,96 @@ public class Xirr {
      * @param rate the rate of return
      * @return the present value of the investment if it had been subject to the
      *         given rate of return
+     * @throws IllegalArgumentException if the transactions cannot have a rate of return
      */
     public double presentValue(final double rate) {
-        return investments.stream()
-            .mapToDouble(inv -> inv.presentValue(rate))
-            .sum();
+        if (!valid) {
+            details.validate();
+        }
+        return evaluator.presentValue(rate);
     }
 
     /**
      * The derivative of the present value under the given rate.
      * @param rate the rate of return
      * @return derivative of the present value under the given rate
+     * @throws IllegalArgumentException if the transactions cannot have a rate of return
      */
     public double derivative(final double rate) {
-        return investments.stream()
-            .mapToDouble(inv -> inv.derivative(rate))
-            .sum();
+        if (!valid) {
+            details.validate();
+        }
+        return evaluator.derivative(rate);
     }
 
     /**
      * Calculates the irregular rate of return of the transactions for this
      * instance of Xirr.
      * @return the irregular rate of return of the transactions
+     * @throws IllegalArgumentException if there are fewer than 2 transactions
+     * @throws IllegalArgumentException if all the transactions are on the same date
+     * @throws IllegalArgumentException if all the transactions negative (deposits)
+     * @throws IllegalArgumentException if all the transactions non-negative (withdrawals)
      * @throws ZeroValuedDerivativeException if the derivative is 0 while executing the Newton-Raphson method
+     * @throws OverflowException when a value involved is infinite or NaN
      * @throws NonconvergenceException if the Newton-Raphson method fails to converge in the
+     * @see #solve()
      */
     public double xirr() {
+        details.validate();
+        return solve().getOrThrow();
+    }
+
+    /**
+     * Calculates the irregular rate of return of the transactions for this
+     * instance of Xirr without throwing if the Newton-Raphson method fails,
+     * or if the transactions cannot have a rate of return, see
+     * {@link SolveResult.Status#INVALID_CASHFLOWS}.
+     * @return the result holding the irregular rate of return of the
+     *         transactions if converged, otherwise the reason for the failure
+     * @see SolveResult
+     */
+    public SolveResult solve() {
+        if (!valid) {
+            return SolveResult.invalid();
+        }
         final double years = DAYS.between(details.start, details.end) / DAYS_IN_YEAR;
         if (details.maxAmount == 0) {
-            return -1; // Total loss
+            return SolveResult.exact(-1); // Total loss
         }
         guess = guess != null ? guess : (details.total / details.deposits) / years;
-        return builder.withFunction(this::presentValue)
-            .withDerivative(this::derivative)
-            .findRoot(guess);
+        final SolveResult result = builder.withFunction(evaluator::presentValue)
+            .withDerivative(evaluator::derivative)
+            .solveRoot(guess);
+        if (evaluator == exactEvaluator || !result.isConverged()) {
+            return result;
+        }
+
+        // One Newton-Raphson step on the exact cashflows estimates how far
+        // the rate moved because of coalescing
+        final double rate = result.getRoot();
+        final double correction = exactEvaluator.presentValue(rate)
+            / exactEvaluator.derivative(rate);
+        coalescingError = Double.isFinite(correction) ? Math.abs(correction) : Double.POSITIVE_INFINITY;
+        if (coalescingError <= maxCoalescingError) {
+            return result;
+        }
+        coalescingError = 0;
+        return builder.withFunction(exactEvaluator::presentValue)
+            .withDerivative(exactEvaluator::derivative)
+            .solveRoot(rate);
     }
 
     /**
-     * Convenience class which represents {@link Transaction} instances more
-     * conveniently for our purposes.
+     * Estimated absolute error of the rate returned by {@link #solve()} caused
+     * by coalescing cashflows within the day tolerance, which never exceeds
+     * the maximum given to {@link Builder#withDayTolerance(int, double)}.
+     * Zero when no cashflows were coalesced, or when the error was too large
+     * and the rate was solved on the exact cashflows instead.
+     * @return estimated absolute error of the rate
      */
-    private static class Investment {
-        /** The amount of the investment. */
-        double amount;
-        /** The number of years for which the investment applies, including
-         * fractional years. */
-        double years;
-
-        /**
-         * Present value of the investment at the given rate.
-         * @param rate the rate of return
-         * @return present value of the investment at the given rate
-         */
-        private double presentValue(final double rate) {
-            if (-1 < rate) {
-                return amount * Math.pow(1 + rate, years);
-            } else if (rate < -1) {
-                // Extend the function into the range where the rate is less
-                // than -100%.  Even though this does not make practical sense,
-                // it allows the algorithm to converge in the cases where the
-                // candidate values enter this range
-
-                // We cannot use the same formula as before, since the base of
-                // the exponent (1+rate) is negative, this yields imaginary
-                // values for fractional years.
-                // E.g. if rate=-1.5 and years=.5, it would be (-.5)^.5,
-                // i.e. the square root of negative one half.
-
-                // Ensure the values are always negative so there can never
-                // be a zero (as long as some amount is non-zero).
-                // This formula also ensures that the derivative is positive
-                // (when rate < -1) so that Newton's method is encouraged to
-                // move the candidate values towards the proper range
-
-                return -Math.abs(amount) * Math.pow(-1 - rate, years);
-            } else if (years == 0) {
-                return amount; // Resolve 0^0 as 0
-            } else {
-                return 0;
-            }
-        }
-
-        /**
-         * Derivative of the present value of the investment at the given rate.
-         * @param rate the rate of return
-         * @return derivative of the present value at the given rate
-         */
-        private double derivative(final double rate) {
-            if (years == 0) {
-                return 0;
-            } else if (-1 < rate) {
-                return amount * years * Math.pow(1 + rate, years - 1);
-            } else if (rate < -1) {
-                return Math.abs(amount) * years * Math.pow(-1 - rate, years - 1);
-            } else {
-                return 0;
-            }
-        }
+    public double coalescingError() {
+        return coalescingError;
     }
 
     /**
@@ -225,6 +223,8 @@ public class Xirr {
         private Collection<Transaction> transactions = null;
         private NewtonRaphson.Builder builder = null;
         private Double guess = null;
+        private int dayTolerance = 0;
+        private double maxCoalescingError = 0;
 
         public Builder() {
         }
@@ -248,8 +248,25 @@ public class Xirr {
             return this;
         }
 
+        /**
+         * Coalesces cashflows lying within <code>dayTolerance</code> days of
+         * each other before solving, see {@link CashflowBuckets#coalesce(int)}.
+         * If the estimated error of the resulting rate exceeds
+         * <code>maxError</code>, the rate is refined on the exact cashflows,
+         * starting from the coalesced solution.
+         * @param dayTolerance the maximum distance in days of coalesced cashflows
+         * @param maxError the maximum estimated absolute error of the rate
+         * @return this builder
+         * @see Xirr#coalescingError()
+         */
+        public Builder withDayTolerance(int dayTolerance, double maxError) {
+            this.dayTolerance = dayTolerance;
+            this.maxCoalescingError = maxError;
+            return this;
+        }
+
         public Xirr build() {
-            return new Xirr(transactions, builder, guess);
+            return new Xirr(transactions, builder, guess, dayTolerance, maxCoalescingError);
         }
 
         /**
@@ -261,6 +278,15 @@ public class Xirr {
         public double xirr() {
             return build().xirr();
         }
+
+        /**
+         * Convenience method for building the Xirr instance and invoking
+         * {@link Xirr#solve()}.
+         * @return the result holding the irregular rate of return
+         */
+        public SolveResult solve() {
+            return build().solve();
+        }
     }
 
 }
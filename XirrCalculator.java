@@ -1,5 +1,13 @@
 package com.portfolio.evaluator;
 
+import com.amazon.epi.automationdetective.xirr.CashflowBuckets;
+import com.amazon.epi.automationdetective.xirr.GoalSeek;
+import com.amazon.epi.automationdetective.xirr.PeriodReturns;
+import com.amazon.epi.automationdetective.xirr.ReturnAttribution;
+import com.amazon.epi.automationdetective.xirr.Scrip;
+import com.amazon.epi.automationdetective.xirr.SolveResult;
+import com.amazon.epi.automationdetective.xirr.Transaction;
+import com.amazon.epi.automationdetective.xirr.Xirr;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import lombok.SneakyThrows;
@@ -7,139 +15,124 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.Period;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class XirrCalculator {
 
     //Transactions file indices
-    private static final int SCRIP_CODE_INDEX = 0;
-    private static final int SCRIP_NAME_INDEX = 1;
-    private static final int TX_DATE_INDEX = 12;
-    private static final int TX_TYPE_INDEX = 3;
-    private static final int TX_QTY = 4;
-    private static final int TX_PRICE = 5;
-    private static final SimpleDateFormat TX_DATE_FORMAT = new SimpleDateFormat("dd-MMM-yy");
+    static final int SCRIP_CODE_INDEX = 0;
+    static final int SCRIP_NAME_INDEX = 1;
+    static final int TX_DATE_INDEX = 12;
+    static final int TX_TYPE_INDEX = 3;
+    static final int TX_QTY = 4;
+    static final int TX_PRICE = 5;
+    //Optional, transactions without it are in the reporting currency
+    static final int TX_CURRENCY_INDEX = 13;
+    static final SimpleDateFormat TX_DATE_FORMAT = new SimpleDateFormat("dd-MMM-yy");
 
     //Summary file column indices
-    private static final int SUMMARY_MARKET_VALUE_INDEX = 8;
-    private static final int SUMMARY_HOLDING_QTY_INDEX = 3;
-
-    private static final String TX_BUY = "Buy";
-    private static final String TX_SELL = "Sell";
+    static final int SUMMARY_MARKET_VALUE_INDEX = 8;
+    static final int SUMMARY_HOLDING_QTY_INDEX = 3;
+    static final int SUMMARY_CURRENCY_INDEX = 9;
+
+    static final String REPORTING_CURRENCY = "INR";
+    //Budgets of the per-scrip XIRR solves, see SolveScheduler
+    private static final long SOLVE_EVALUATIONS_PER_SCRIP = 1_000_000;
+    private static final long SOLVE_MILLIS_PER_SCRIP = 1_000;
+    private static final long SOLVE_MILLIS_PER_BATCH = 300_000;
+    //Rate the planning columns solve for
+    private static final double TARGET_XIRR = 0.12;
+
+    static final String TX_BUY = "Buy";
+    static final String TX_SELL = "Sell";
     final static List<String> headerFields = new ArrayList<String>() {{
             add("Code");
             add("Name");
+            add("Currency");
             add("XIRR%");
+            add("XIRR% (reporting currency)");
+            add("TWR%");
+            add("Modified Dietz%");
             add("No. of transactions");
             add("Total Holding period");
             add("Currently held qty.");
             add("Total invested sum");
             add("Total P/L");
-            add("Weighted returns score (XIRR * holding period years * allocation)");
+            add("Contribution to portfolio XIRR%");
+            add("Weight in portfolio XIRR%");
+            add("Additional value for target XIRR");
     }};
 
     @SneakyThrows
     public static void main(String[] args) {
-        boolean headerFlag = false;
         //File containing all historical transactions
-        Scanner txParser = new Scanner(new File("src/main/resources/pf/dummy_tx.csv"));
-        final Map<String, Scrip> scrips = new HashMap<>();
-
-        while (txParser.hasNext()) {
-            String line = txParser.nextLine();
-
-            if(!headerFlag) {
-                headerFlag = true;
-                continue;
-            }
-
-            String[] record = line.split(",");
-            final String scripCode = record[SCRIP_CODE_INDEX];
-            final String scripName = record[SCRIP_NAME_INDEX];
-
-            final Scrip scrip;
-            if(scrips.containsKey(scripCode)) {
-                scrip = scrips.get(scripCode);
-            } else {
-                scrip = new Scrip(scripCode, scripName);
-                scrips.put(scripCode, scrip);
-            }
-
-            final Date txDate = strToDate(record[TX_DATE_INDEX]);
-            if(txDate == null) {
-                throw new IllegalStateException("Transaction date cannot be null");
-            }
-
-            final String txType = record[TX_TYPE_INDEX];
-            final int qty = Integer.parseInt(record[TX_QTY]);
-            final double price = Double.parseDouble(record[TX_PRICE]);
-            final double txAmount;
-
-            if(txType.toLowerCase(Locale.ROOT).equals(TX_BUY.toLowerCase(Locale.ROOT))
-                    || txType.toLowerCase(Locale.ROOT).equals("b")) {
-                //calculate outflow
-                txAmount = -1 * qty * price;
-            } else {
-                //calculate inflow after sell tx
-                txAmount = qty * price;
-            }
-
-            final Transaction currTx = new Transaction(txAmount, txDate);
-            scrip.getTransactions().add(currTx);
-        }
-
+        final File txFile = new File("src/main/resources/pf/dummy_tx.csv");
         //File containing PF summary [incl. 0 holdings]
-        Scanner summaryParser = new Scanner(new File("src/main/resources/pf/dummy_summary.csv"));
-
-        //Use summary file to get the current market value and holdings
-        headerFlag = false;
-        while (summaryParser.hasNext()) {
-            final String line = summaryParser.nextLine();
-            if(!headerFlag) {
-                headerFlag = true;
-                continue;
-            }
-
-            String[] record = line.split(",");
-            final String scripCode = record[SCRIP_CODE_INDEX];
-            final String scripName = record[SCRIP_NAME_INDEX];
-
-            final Scrip scrip;
-            if(scrips.containsKey(scripCode)) {
-                scrip = scrips.get(scripCode);
-            } else {
-                scrip = new Scrip(scripCode, scripName);
-                scrips.put(scripCode, scrip);
-            }
-
-            final Date txDate = Date.from(Instant.now());
-
-            final int qty = Integer.parseInt(record[SUMMARY_HOLDING_QTY_INDEX]);
-            final double currentMarketValue = Double.parseDouble(record[SUMMARY_MARKET_VALUE_INDEX]);
-
-            scrip.setHoldingQty(qty);
-            if(currentMarketValue > 0 && qty > 0) {
-                final Transaction currTx = new Transaction(currentMarketValue, txDate);
-                scrip.getTransactions().add(currTx);
+        final File summaryFile = new File("src/main/resources/pf/dummy_summary.csv");
+        final ScripRegistry registry = new ScripRegistry();
+        //File containing splits, bonus issues and dividends [optional]
+        final CorporateActions corporateActions = CorporateActions.load(
+                new File("src/main/resources/pf/dummy_corporate_actions.csv"));
+        //File containing FX rates into the reporting currency [optional]
+        final FxRates fxRates = FxRates.load(new File("src/main/resources/pf/dummy_fx_rates.csv"), REPORTING_CURRENCY);
+        //File containing group tags such as sector or asset class [optional]
+        final Map<String, RollupTree> rollups = RollupTree.load(new File("src/main/resources/pf/dummy_tags.csv"));
+
+        //Directory of the persistent transaction log [optional, create it to only parse new transactions]
+        final File logDirectory = new File("src/main/resources/pf/tx_log");
+
+        //Load the transactions, dividends and current holdings on all cores
+        final ChunkedLoader loader = new ChunkedLoader(registry, fxRates, corporateActions,
+                Runtime.getRuntime().availableProcessors());
+        if (logDirectory.isDirectory()) {
+            try (TransactionLog log = TransactionLog.open(logDirectory.toPath())) {
+                System.out.println("New transactions : " + log.append(txFile));
+                loader.load(log, summaryFile);
             }
+        } else {
+            loader.load(txFile, summaryFile);
         }
 
-        final List<Transaction> masterTransactions = getAllPortfolioTransactions(scrips.values());
-        Xirr xirr = new Xirr(masterTransactions);
-        final double xirrPercent = xirr.xirr() * 100;
+        //The budgets of all XIRR solves, the history file is updated by each run [optional]
+        final File solveHistoryFile = new File("solve_history.csv");
+        final SolveScheduler scheduler = SolveScheduler.load(solveHistoryFile)
+                .withEvaluationsPerScrip(SOLVE_EVALUATIONS_PER_SCRIP)
+                .withTimePerScrip(SOLVE_MILLIS_PER_SCRIP, TimeUnit.MILLISECONDS)
+                .withTimePerBatch(SOLVE_MILLIS_PER_BATCH, TimeUnit.MILLISECONDS);
+
+        final List<Transaction> masterTransactions = getAllPortfolioTransactions(registry.scrips());
+        //Each evaluation is over the transactions netted by date
+        final SolveResult xirrResult = Xirr.builder()
+                .withTransactions(masterTransactions)
+                .withNewtonRaphsonBuilder(scheduler.newtonRaphsonBuilder(
+                        CashflowBuckets.of(masterTransactions).size()))
+                .solve();
+        if(!xirrResult.isConverged()) {
+            System.out.println("XIRR left to fallback for portfolio : " + xirrResult);
+        }
+        final double xirrPercent = xirrResult.getRoot() * 100;
+        final List<List<Transaction>> positions = registry.scrips().stream()
+                .map(scrip -> toReportingCurrency(scrip.getTransactions()))
+                .collect(Collectors.toList());
+        final PeriodReturns periodReturns = PeriodReturns.ofPositions(positions);
+        //Attribute the portfolio XIRR to the scrips at the portfolio rate
+        final ReturnAttribution attribution = ReturnAttribution.of(positions, xirrResult.getRoot());
+        //Value to add today for each scrip to reach the target XIRR
+        final LocalDate now = LocalDate.now();
+        final double[] targetShortfalls = GoalSeek.batch(positions, TARGET_XIRR, seek -> seek.terminalValue(now));
 
         final PrintWriter logWriter = new PrintWriter(
                 new FileWriter("XIRR_Results_" + new SimpleDateFormat("dd-MM-yyyy")
@@ -150,45 +143,106 @@ public class XirrCalculator {
         final double totalInvested = getTotalInvested(masterTransactions);
         final double totalPnl = getTotalOutflow(masterTransactions) - totalInvested;
         final long pfAgeDays = getHoldingPeriodDays(masterTransactions);
-        final LocalDate now = LocalDate.now();
         final Period period = Period.between(now, now.plusDays(pfAgeDays));
 
-        String msg = (csvJoiner.join("Portfolio", "Portfolio", xirrPercent, masterTransactions.size(), period, "", totalInvested, totalPnl));
+        String msg = (csvJoiner.join("Portfolio", "Portfolio", REPORTING_CURRENCY, xirrPercent, xirrPercent,
+                periodReturns.timeWeighted() * 100,
+                periodReturns.modifiedDietz() * 100, masterTransactions.size(), period, "", totalInvested, totalPnl,
+                xirrPercent, 100, GoalSeek.of(masterTransactions, TARGET_XIRR).terminalValue(now)));
         System.out.println(msg);
         logWriter.println(msg);
 
-        scrips.values().forEach(scrip -> {
+        //Solve the scrips cheapest first within the budgets
+        final List<String> solveCodes = registry.scrips().stream().map(Scrip::getScripCode)
+                .collect(Collectors.toList());
+        final List<List<Transaction>> solvePositions = registry.scrips().stream().map(Scrip::getTransactions)
+                .collect(Collectors.toList());
+        //Scrips in another currency are also solved in the reporting currency, in the same batch
+        final int[] reportingSolves = new int[registry.size()];
+        for (int scripId = 0; scripId < registry.size(); scripId++) {
+            if (fxRates.seriesOf(scripId) == FxRates.Series.IDENTITY) {
+                reportingSolves[scripId] = scripId;
+            } else {
+                reportingSolves[scripId] = solveCodes.size();
+                solveCodes.add(registry.get(scripId).getScripCode() + "@" + REPORTING_CURRENCY);
+                solvePositions.add(positions.get(scripId));
+            }
+        }
+        final SolveResult[] scripXirrResults = scheduler.solve(solveCodes, solvePositions);
+        scheduler.getFallback().forEach(fallback -> System.out.println("XIRR left to fallback for scrip : " + fallback));
+        scheduler.save(solveHistoryFile);
+
+        for (int scripId = 0; scripId < registry.size(); scripId++) {
+            final Scrip scrip = registry.get(scripId);
             try {
                 final List<Transaction> txList = scrip.getTransactions();
+                final FxRates.Series fx = fxRates.seriesOf(scripId);
 
-                final Xirr scripXirr;
                 final double scripXirrPercent;
-                final double weightedReturnsScore;
+                final double reportingXirrPercent;
                 final boolean hasBuyTx = txList.stream().anyMatch(tx -> tx.getAmount() < 0);
                 final double totalInvestedScrip = getTotalInvested(scrip.getTransactions());
                 final long holdingPeriodDays = getHoldingPeriodDays(txList);
+                final PeriodReturns scripReturns = PeriodReturns.of(txList);
+
+                final SolveResult scripXirrResult = scripXirrResults[scripId];
+                final SolveResult reportingXirrResult = scripXirrResults[reportingSolves[scripId]];
 
-                if(hasBuyTx) {
-                    scripXirr = new Xirr(txList);
-                    scripXirrPercent = scripXirr.xirr() * 100;
-                    weightedReturnsScore = totalInvestedScrip/totalInvested * 100 * holdingPeriodDays/365 * scripXirrPercent;
+                if(hasBuyTx && scripXirrResult != null) {
+                    scripXirrPercent = scripXirrResult.getRoot() * 100;
+                    reportingXirrPercent = reportingXirrResult != null
+                            ? reportingXirrResult.getRoot() * 100 : Double.NaN;
                 } else {
                     scripXirrPercent = Double.NaN;
-                    weightedReturnsScore = Double.NaN;
+                    reportingXirrPercent = Double.NaN;
                 }
 
                 final double totalOutflow = getTotalOutflow(scrip.getTransactions());
                 final double totalPnLScrip = totalOutflow - totalInvestedScrip;
                 final Period scripHoldingPeriod = Period.between(now, now.plusDays(holdingPeriodDays));
                 String msg2 = csvJoiner.join(
-                        scrip.getScripCode(), scrip.getScripName(), scripXirrPercent, txList.size(), scripHoldingPeriod,
-                        scrip.getHoldingQty(), totalInvestedScrip, totalPnLScrip, weightedReturnsScore);
+                        scrip.getScripCode(), scrip.getScripName(),
+                        fx.getCurrency() != null ? fx.getCurrency() : REPORTING_CURRENCY,
+                        scripXirrPercent, reportingXirrPercent, scripReturns.timeWeighted() * 100, scripReturns.modifiedDietz() * 100, txList.size(), scripHoldingPeriod,
+                        scrip.getHoldingQty(), totalInvestedScrip, totalPnLScrip,
+                        attribution.contribution(scripId) * 100, attribution.weight(scripId) * 100,
+                        targetShortfalls[scripId]);
                 System.out.println(msg2);
                 logWriter.println(msg2);
             } catch (Exception e) {
-                System.out.println("Exception occurred while printing xirr for scrip name : " + scrip.getScripName());
+                System.out.println("Exception occurred while printing xirr for scrip name : " + scrip.getScripName()
+                        + " " + e.getMessage());
             }
-        });
+        }
+
+        //Roll the scrips up into their groups
+        for (RollupTree rollup : rollups.values()) {
+            registry.scrips().forEach(scrip ->
+                    rollup.update(scrip.getScripCode(), toReportingCurrency(scrip.getTransactions())));
+            rollup.forEachGroup(node -> {
+                try {
+                    //Within the budgets and the deadline of the scrips
+                    final SolveResult groupXirrResult = node.getXirr(
+                            scheduler.newtonRaphsonBuilder(node.getCashflows().size()));
+                    if(!groupXirrResult.isConverged()) {
+                        System.out.println("XIRR failed for group : " + node.getPath() + " " + groupXirrResult);
+                    }
+                    final double groupXirrPercent = groupXirrResult.getRoot() * 100;
+                    final List<Object> groupFields = Lists.newArrayList("Group", node.getPath(),
+                            REPORTING_CURRENCY, groupXirrPercent, groupXirrPercent);
+                    //Leave the columns which do not apply to groups empty
+                    while (groupFields.size() < headerFields.size()) {
+                        groupFields.add("");
+                    }
+                    final String msg3 = csvJoiner.join(groupFields);
+                    System.out.println(msg3);
+                    logWriter.println(msg3);
+                } catch (Exception e) {
+                    System.out.println("Exception occurred while printing xirr for group : " + node.getPath()
+                            + " " + e.getMessage());
+                }
+            });
+        }
 
         logWriter.close();
         logWriter.flush();
@@ -215,11 +269,61 @@ public class XirrCalculator {
     private static List<Transaction> getAllPortfolioTransactions(final Collection<Scrip> scrips) {
 
         final List<Transaction> masterTransactions = Lists.newArrayList();
-        scrips.forEach(scrip -> masterTransactions.addAll(scrip.getTransactions()));
+        scrips.forEach(scrip -> masterTransactions.addAll(toReportingCurrency(scrip.getTransactions())));
 
         return masterTransactions;
     }
 
+    private static List<Transaction> toReportingCurrency(final List<Transaction> transactions) {
+        return transactions.stream().map(Transaction::toReportingCurrency).collect(Collectors.toList());
+    }
+
+    /**
+     * Converts a record of the transactions file into a {@link Transaction},
+     * buys being outflows and sells inflows.
+     */
+    static Transaction parseTransaction(final CsvLine record) {
+        return parseTransaction(record, FxRates.Series.IDENTITY);
+    }
+
+    /**
+     * Converts a record of the transactions file into a {@link Transaction}
+     * in the currency of the given series, tagged with its rate on the day.
+     */
+    static Transaction parseTransaction(final CsvLine record, final FxRates.Series fx) {
+        return parseTransaction(record, fx, TX_DATE_FORMAT);
+    }
+
+    /**
+     * Converts a record of the transactions file into a {@link Transaction}
+     * using the given date format, so that each thread can use its own.
+     */
+    static Transaction parseTransaction(final CsvLine record, final FxRates.Series fx,
+                                        final SimpleDateFormat dateFormat) {
+        final Date txDate = dateFormat.parse(record.line(), new ParsePosition(record.start(TX_DATE_INDEX)));
+        if(txDate == null) {
+            throw new IllegalStateException("Transaction date cannot be null");
+        }
+
+        final int qty = record.getInt(TX_QTY);
+        final double price = record.getDouble(TX_PRICE);
+        final double txAmount;
+        final int units;
+
+        if(record.equalsIgnoreCase(TX_TYPE_INDEX, TX_BUY) || record.equalsIgnoreCase(TX_TYPE_INDEX, "b")) {
+            //calculate outflow
+            txAmount = -1 * qty * price;
+            units = qty;
+        } else {
+            //calculate inflow after sell tx
+            txAmount = qty * price;
+            units = -qty;
+        }
+
+        final LocalDate txDay = LocalDate.from(txDate.toInstant().atZone(ZoneId.systemDefault()));
+        return new Transaction(txAmount, txDay, units, price, fx.getCurrency(), fx.rate(txDay.toEpochDay()));
+    }
+
     public static Date strToDate(final String str) {
         try {
             return TX_DATE_FORMAT.parse(str);
@@ -23,8 +23,10 @@ class XirrDetails {
     double maxAmount = Double.NEGATIVE_INFINITY;
     double total;
     double deposits;
+    int count;
 
     public void accumulate(final Transaction tx) {
+        count++;
         start = start != null && start.isBefore(tx.when) ? start : tx.when;
         end = end != null && end.isAfter(tx.when) ? end : tx.when;
         minAmount = Math.min(minAmount, tx.amount);
@@ -41,25 +43,38 @@ class XirrDetails {
         minAmount = Math.min(minAmount, other.minAmount);
         maxAmount = Math.max(maxAmount, other.maxAmount);
         total += other.total;
+        deposits += other.deposits;
+        count += other.count;
         return this;
     }
 
-    public void validate() {
+    /**
+     * The reason the transactions cannot have a rate of return.
+     * @return the reason, null if the transactions are valid
+     */
+    public String problem() {
         if (start == null) {
-            throw new IllegalArgumentException("No transactions to anaylze");
+            return "No transactions to anaylze";
+        }
+        if (count < 2) {
+            return "Must have at least two transactions";
         }
-
         if (start.equals(end)) {
-            throw new IllegalArgumentException(
-                "Transactions must not all be on the same day.");
+            return "Transactions must not all be on the same day.";
         }
         if (minAmount >= 0) {
-            throw new IllegalArgumentException(
-                "Transactions must not all be nonnegative.");
+            return "Transactions must not all be nonnegative.";
         }
         if (maxAmount < 0) {
-            throw new IllegalArgumentException(
-                "Transactions must not be negative.");
+            return "Transactions must not be negative.";
+        }
+        return null;
+    }
+
+    public void validate() {
+        final String problem = problem();
+        if (problem != null) {
+            throw new IllegalArgumentException(problem);
         }
     }
 
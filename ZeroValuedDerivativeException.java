@@ -10,7 +10,7 @@ package com.amazon.epi.automationdetective.xirr;
  */
 public class ZeroValuedDerivativeException extends OverflowException {
 
-    ZeroValuedDerivativeException(NewtonRaphson.Calculation state) {
+    ZeroValuedDerivativeException(SolveResult state) {
         super("Newton-Raphson failed due to zero-valued derivative.", state);
     }
 }